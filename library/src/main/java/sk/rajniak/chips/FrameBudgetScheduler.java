@@ -0,0 +1,163 @@
+package sk.rajniak.chips;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.util.ArrayDeque;
+
+/**
+ * Runs work on the UI thread in slices that fit into a frame.
+ *
+ * Work is queued as {@link Task}s made of small steps. Every frame the scheduler runs steps of the
+ * queued tasks, in order, until its time budget is spent and continues with the next frame, so
+ * input and drawing are handled between slices however much work is queued. Frames are followed
+ * by {@link Choreographer} on Jelly Bean and newer, older releases post to a {@link Handler}.
+ */
+class FrameBudgetScheduler {
+
+    /**
+     * Time spent per frame, about half of a frame at 60 fps.
+     */
+    private static final long DEFAULT_FRAME_BUDGET_NANOS = 8000000L;
+
+    /**
+     * Delay between slices when frames can't be followed.
+     */
+    private static final long FALLBACK_FRAME_DELAY_MS = 16;
+
+    /**
+     * Piece of work split into steps.
+     */
+    interface Task {
+        /**
+         * Do the next step of the work. A step should take well below a millisecond.
+         *
+         * @return True if there are more steps to do.
+         */
+        boolean step();
+    }
+
+    private final ArrayDeque<Task> mTasks = new ArrayDeque<>();
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final Runnable mRunSlice = new Runnable() {
+        @Override
+        public void run() {
+            mScheduled = false;
+            runSlice();
+        }
+    };
+
+    private Object mFrameCallback;
+
+    private long mFrameBudgetNanos = DEFAULT_FRAME_BUDGET_NANOS;
+
+    private boolean mScheduled;
+
+    /**
+     * Sets the time the scheduler may take up in one frame.
+     */
+    public void setFrameBudgetNanos(long frameBudgetNanos) {
+        mFrameBudgetNanos = frameBudgetNanos;
+    }
+
+    /**
+     * Queue the task, its first step runs in the next frame.
+     */
+    public void post(Task task) {
+        mTasks.add(task);
+        scheduleSlice();
+    }
+
+    /**
+     * Drop the task if it is still queued. Nothing is posted anymore once no task is left.
+     */
+    public void cancel(Task task) {
+        mTasks.remove(task);
+        if (mTasks.isEmpty()) {
+            unscheduleSlice();
+        }
+    }
+
+    public boolean isPending(Task task) {
+        return mTasks.contains(task);
+    }
+
+    public boolean isIdle() {
+        return mTasks.isEmpty();
+    }
+
+    private void runSlice() {
+        long deadline = System.nanoTime() + mFrameBudgetNanos;
+        while (!mTasks.isEmpty()) {
+            Task task = mTasks.peek();
+            boolean more = task.step();
+            if (!more && mTasks.peek() == task) {
+                mTasks.poll();
+            }
+            if (System.nanoTime() >= deadline) {
+                break;
+            }
+        }
+        if (!mTasks.isEmpty()) {
+            scheduleSlice();
+        }
+    }
+
+    private void scheduleSlice() {
+        if (mScheduled) {
+            return;
+        }
+        mScheduled = true;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            if (mFrameCallback == null) {
+                mFrameCallback = FrameCallbackCompat.create(mRunSlice);
+            }
+            FrameCallbackCompat.post(mFrameCallback);
+        } else {
+            mHandler.postDelayed(mRunSlice, FALLBACK_FRAME_DELAY_MS);
+        }
+    }
+
+    private void unscheduleSlice() {
+        if (!mScheduled) {
+            return;
+        }
+        mScheduled = false;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            FrameCallbackCompat.remove(mFrameCallback);
+        } else {
+            mHandler.removeCallbacks(mRunSlice);
+        }
+    }
+
+    /**
+     * Keeps {@link Choreographer} out of the scheduler, so it loads on releases without it.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static class FrameCallbackCompat {
+
+        static Object create(final Runnable runnable) {
+            return new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    runnable.run();
+                }
+            };
+        }
+
+        static void post(Object frameCallback) {
+            Choreographer.getInstance().postFrameCallback(
+                    (Choreographer.FrameCallback) frameCallback);
+        }
+
+        static void remove(Object frameCallback) {
+            Choreographer.getInstance().removeFrameCallback(
+                    (Choreographer.FrameCallback) frameCallback);
+        }
+    }
+}
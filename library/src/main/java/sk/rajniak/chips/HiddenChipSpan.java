@@ -0,0 +1,23 @@
+package sk.rajniak.chips;
+
+import android.text.NoCopySpan;
+
+import sk.rajniak.chips.recipientchip.DrawableRecipientChip;
+
+/**
+ * Marks the text of a chip hidden by the more chip, the marker moves along with edits of the
+ * text so the chip can be put back in its place. Markers stay with the text of the field, copies
+ * of the text, e.g. copied or saved, don't take them along.
+ */
+class HiddenChipSpan implements NoCopySpan {
+
+    private final DrawableRecipientChip mChip;
+
+    HiddenChipSpan(DrawableRecipientChip chip) {
+        mChip = chip;
+    }
+
+    public DrawableRecipientChip getChip() {
+        return mChip;
+    }
+}
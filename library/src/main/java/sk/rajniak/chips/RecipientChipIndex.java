@@ -0,0 +1,372 @@
+package sk.rajniak.chips;
+
+import android.text.NoCopySpan;
+import android.text.SpanWatcher;
+import android.text.Spannable;
+import android.text.Spanned;
+import android.text.util.Rfc822Token;
+import android.text.util.Rfc822Tokenizer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+
+import sk.rajniak.chips.recipientchip.DrawableRecipientChip;
+
+/**
+ * Chips of the text ordered by their offset.
+ *
+ * The index is attached to the text as a {@link SpanWatcher}, so it follows chips being added and
+ * removed instead of collecting and sorting all chip spans on every query. Edits of the text
+ * only shift chips and never change their order, so the order is only checked again after a chip
+ * was added out of order or resized.
+ *
+ * Chips never overlap, so the ordered starts make it an interval index as well: the chip at an
+ * offset is found by binary search.
+ *
+ * Chips are also indexed by their normalized destination, counting chips hidden by the more chip
+ * too, so duplicate recipients are found without looking at other chips.
+ *
+ * Between {@link #beginBatchEdit()} and {@link #endBatchEdit()} chips added and removed are not
+ * put in order one at a time, the chips are collected from the text once when next asked for.
+ */
+class RecipientChipIndex implements SpanWatcher, NoCopySpan {
+
+    private final ArrayList<DrawableRecipientChip> mChips = new ArrayList<>();
+
+    /**
+     * Chips, shown or hidden, by their normalized destination.
+     */
+    private final HashMap<String, ArrayList<DrawableRecipientChip>> mDestinations =
+            new HashMap<>();
+
+    private Spannable mText;
+
+    /**
+     * Set when the order of {@link #mChips} may not match the text anymore.
+     */
+    private boolean mDirty;
+
+    /**
+     * Set when chips were added or removed during a batch edit, {@link #mChips} has to be
+     * collected from the text again.
+     */
+    private boolean mStale;
+
+    private int mBatchEditNesting;
+
+    /**
+     * Changed whenever chips are added, removed or may have changed their order.
+     */
+    private int mVersion;
+
+    /**
+     * Start indexing the text. Chips already in the text are indexed right away.
+     */
+    public synchronized void attach(Spannable text) {
+        if (mText != null) {
+            mText.removeSpan(this);
+        }
+        mText = text;
+        mChips.clear();
+        mDestinations.clear();
+        mStale = false;
+        DrawableRecipientChip[] chips = text.getSpans(0, text.length(),
+                DrawableRecipientChip.class);
+        for (DrawableRecipientChip chip : chips) {
+            mChips.add(chip);
+            addDestination(chip);
+        }
+        HiddenChipSpan[] hiddenChips = text.getSpans(0, text.length(), HiddenChipSpan.class);
+        for (HiddenChipSpan hidden : hiddenChips) {
+            addDestination(hidden.getChip());
+        }
+        mDirty = true;
+        mVersion++;
+        text.setSpan(this, 0, text.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+    }
+
+    /**
+     * Returns the text the index is attached to.
+     */
+    public synchronized Spannable getText() {
+        return mText;
+    }
+
+    /**
+     * Returns a number that stays the same as long as the indexed chips and their order do.
+     */
+    public synchronized int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Starts a batch of edits, e.g. replacing many chips. Calls nest, each needs a matching
+     * {@link #endBatchEdit()}.
+     */
+    public synchronized void beginBatchEdit() {
+        mBatchEditNesting++;
+    }
+
+    public synchronized void endBatchEdit() {
+        if (mBatchEditNesting > 0) {
+            mBatchEditNesting--;
+        }
+    }
+
+    public synchronized int size() {
+        ensureCurrent();
+        return mChips.size();
+    }
+
+    /**
+     * Returns the chip at the position in the offset order.
+     */
+    public synchronized DrawableRecipientChip get(int index) {
+        ensureSorted();
+        return mChips.get(index);
+    }
+
+    /**
+     * Returns the chip with the largest offset, or null if there are no chips.
+     */
+    public synchronized DrawableRecipientChip getLastChip() {
+        ensureCurrent();
+        if (mChips.isEmpty()) {
+            return null;
+        }
+        ensureSorted();
+        return mChips.get(mChips.size() - 1);
+    }
+
+    /**
+     * Returns all chips ordered by their offset.
+     */
+    public synchronized DrawableRecipientChip[] getChips() {
+        ensureSorted();
+        return mChips.toArray(new DrawableRecipientChip[mChips.size()]);
+    }
+
+    /**
+     * Returns the chip whose range, end inclusive, contains the offset, or null if there is none.
+     */
+    public synchronized DrawableRecipientChip findChip(int offset) {
+        int index = floorIndex(offset);
+        if (index < 0) {
+            return null;
+        }
+        DrawableRecipientChip chip = mChips.get(index);
+        return offset <= mText.getSpanEnd(chip) ? chip : null;
+    }
+
+    /**
+     * Returns the chip with the largest start not after the offset, or null if there is none.
+     */
+    public synchronized DrawableRecipientChip findChipBefore(int offset) {
+        int index = floorIndex(offset);
+        return index >= 0 ? mChips.get(index) : null;
+    }
+
+    /**
+     * Returns the position in the offset order of the first chip starting at or after the offset,
+     * or the number of chips if there is none.
+     */
+    public synchronized int ceilingIndex(int offset) {
+        ensureSorted();
+        return findInsertionIndex(offset - 1);
+    }
+
+    /**
+     * Returns true if a chip, shown or hidden, has the destination.
+     */
+    public synchronized boolean containsDestination(String destination) {
+        String key = normalizeDestination(destination);
+        return key != null && mDestinations.containsKey(key);
+    }
+
+    /**
+     * Returns a shown chip with the destination, or null if there is none.
+     */
+    public synchronized DrawableRecipientChip findChipByDestination(String destination) {
+        String key = normalizeDestination(destination);
+        ArrayList<DrawableRecipientChip> chips = key != null ? mDestinations.get(key) : null;
+        if (chips != null) {
+            for (DrawableRecipientChip chip : chips) {
+                if (mText.getSpanStart(chip) != -1) {
+                    return chip;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the address of the destination in lower case, so the same address written
+     * differently maps to one key.
+     */
+    static String normalizeDestination(String destination) {
+        if (destination == null) {
+            return null;
+        }
+        Rfc822Token[] tokens = Rfc822Tokenizer.tokenize(destination);
+        String address = tokens.length > 0 ? tokens[0].getAddress() : destination;
+        if (address == null) {
+            address = destination;
+        }
+        address = address.trim();
+        return address.length() > 0 ? address.toLowerCase(Locale.US) : null;
+    }
+
+    private void addDestination(DrawableRecipientChip chip) {
+        String key = normalizeDestination(chip.getEntry().getDestination());
+        if (key == null) {
+            return;
+        }
+        ArrayList<DrawableRecipientChip> chips = mDestinations.get(key);
+        if (chips == null) {
+            chips = new ArrayList<>(1);
+            mDestinations.put(key, chips);
+        }
+        chips.add(chip);
+    }
+
+    private void removeDestination(DrawableRecipientChip chip) {
+        String key = normalizeDestination(chip.getEntry().getDestination());
+        ArrayList<DrawableRecipientChip> chips = key != null ? mDestinations.get(key) : null;
+        if (chips != null && chips.remove(chip) && chips.isEmpty()) {
+            mDestinations.remove(key);
+        }
+    }
+
+    private int floorIndex(int offset) {
+        ensureSorted();
+        return findInsertionIndex(offset) - 1;
+    }
+
+    @Override
+    public synchronized void onSpanAdded(Spannable text, Object what, int start, int end) {
+        if (text != mText) {
+            return;
+        }
+        if (what instanceof HiddenChipSpan) {
+            addDestination(((HiddenChipSpan) what).getChip());
+            return;
+        }
+        if (!(what instanceof DrawableRecipientChip)) {
+            return;
+        }
+        DrawableRecipientChip chip = (DrawableRecipientChip) what;
+        mVersion++;
+        addDestination(chip);
+        if (mBatchEditNesting > 0 || mStale) {
+            mStale = true;
+        } else if (mDirty) {
+            mChips.add(chip);
+        } else {
+            // Chips are usually appended, so look at the end first.
+            int size = mChips.size();
+            if (size == 0 || text.getSpanStart(mChips.get(size - 1)) <= start) {
+                mChips.add(chip);
+            } else {
+                mChips.add(findInsertionIndex(start), chip);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void onSpanRemoved(Spannable text, Object what, int start, int end) {
+        if (text != mText) {
+            return;
+        }
+        if (what instanceof HiddenChipSpan) {
+            removeDestination(((HiddenChipSpan) what).getChip());
+            return;
+        }
+        if (!(what instanceof DrawableRecipientChip)) {
+            return;
+        }
+        if (mBatchEditNesting > 0 || mStale) {
+            // Removing from the middle of the chips moves the chips after it, once per chip.
+            mStale = true;
+            mVersion++;
+            removeDestination((DrawableRecipientChip) what);
+        } else if (mChips.remove(what)) {
+            mVersion++;
+            removeDestination((DrawableRecipientChip) what);
+        }
+    }
+
+    @Override
+    public synchronized void onSpanChanged(Spannable text, Object what, int ostart, int oend,
+            int nstart, int nend) {
+        if (text != mText || !(what instanceof DrawableRecipientChip)) {
+            return;
+        }
+        // A chip shifted as a whole keeps its place among the other chips.
+        if (nstart - ostart != nend - oend) {
+            mDirty = true;
+            mVersion++;
+        }
+    }
+
+    /**
+     * Returns the index of the first chip starting after the offset.
+     */
+    private int findInsertionIndex(int start) {
+        int low = 0;
+        int high = mChips.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mText.getSpanStart(mChips.get(mid)) <= start) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Collects the chips from the text again if they changed during a batch edit.
+     */
+    private void ensureCurrent() {
+        if (!mStale) {
+            return;
+        }
+        DrawableRecipientChip[] chips = mText.getSpans(0, mText.length(),
+                DrawableRecipientChip.class);
+        mChips.clear();
+        mChips.ensureCapacity(chips.length);
+        for (DrawableRecipientChip chip : chips) {
+            mChips.add(chip);
+        }
+        mStale = false;
+        mDirty = true;
+    }
+
+    private void ensureSorted() {
+        ensureCurrent();
+        if (!mDirty) {
+            return;
+        }
+        // Look up every start once, the chips are nearly sorted so insertion sort is cheap.
+        int size = mChips.size();
+        int[] starts = new int[size];
+        for (int i = 0; i < size; i++) {
+            starts[i] = mText.getSpanStart(mChips.get(i));
+        }
+        for (int i = 1; i < size; i++) {
+            int start = starts[i];
+            DrawableRecipientChip chip = mChips.get(i);
+            int j = i - 1;
+            while (j >= 0 && starts[j] > start) {
+                starts[j + 1] = starts[j];
+                mChips.set(j + 1, mChips.get(j));
+                j--;
+            }
+            starts[j + 1] = start;
+            mChips.set(j + 1, chip);
+        }
+        mDirty = false;
+    }
+}
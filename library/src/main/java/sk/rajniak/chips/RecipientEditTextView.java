@@ -10,12 +10,9 @@ import android.content.DialogInterface;
 import android.content.res.Resources;
 import android.content.res.TypedArray;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
-import android.graphics.Matrix;
 import android.graphics.Point;
 import android.graphics.Rect;
-import android.graphics.RectF;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.AsyncTask;
@@ -51,6 +48,7 @@ import android.view.MenuItem;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewParent;
+import android.view.ViewTreeObserver;
 import android.view.inputmethod.EditorInfo;
 import android.view.inputmethod.InputConnection;
 import android.widget.AdapterView;
@@ -64,9 +62,10 @@ import android.widget.ScrollView;
 import android.widget.TextView;
 
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -75,9 +74,19 @@ import sk.rajniak.chips.model.BaseRecipientAdapter;
 import sk.rajniak.chips.model.RecipientAlternatesAdapter;
 import sk.rajniak.chips.model.RecipientEntry;
 import sk.rajniak.chips.model.SingleRecipientArrayAdapter;
+import sk.rajniak.chips.recipientchip.DirectRecipientChip;
 import sk.rajniak.chips.recipientchip.DrawableRecipientChip;
 import sk.rajniak.chips.recipientchip.InvisibleRecipientChip;
 import sk.rajniak.chips.recipientchip.VisibleRecipientChip;
+import sk.rajniak.chips.render.ChipBitmap;
+import sk.rajniak.chips.render.ChipBitmapCache;
+import sk.rajniak.chips.render.ChipBitmapPool;
+import sk.rajniak.chips.render.ChipDrawable;
+import sk.rajniak.chips.render.ChipLayout;
+import sk.rajniak.chips.render.ChipPainter;
+import sk.rajniak.chips.render.ChipRasterizer;
+import sk.rajniak.chips.render.ChipTextMeasureCache;
+import sk.rajniak.chips.render.RecipientRenderingContext;
 
 /**
  * RecipientEditTextView is an auto complete text view for use with applications that use the new Chips UI for
@@ -109,7 +118,46 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
     // TODO: get correct number/ algorithm from with UX.
     private static final int CHIP_LIMIT = 2;
 
-    private static final int MAX_CHIPS_PARSED = 50;
+    /**
+     * Lazily rendered chips further than this many viewports off-screen give their pixels back.
+     */
+    private static final int VIEWPORT_KEEP_FACTOR = 3;
+
+    /**
+     * Values of the chipBitmapConfig attribute.
+     */
+    private static final int CHIP_BITMAP_CONFIG_AUTO = 0;
+
+    private static final int CHIP_BITMAP_CONFIG_ARGB_8888 = 1;
+
+    private static final int CHIP_BITMAP_CONFIG_RGB_565 = 2;
+
+    /**
+     * Chips are rasterized into bitmaps which are drawn by image spans.
+     */
+    public static final int CHIP_RENDERING_BITMAP = 0;
+
+    /**
+     * Chips keep only their measured text and are painted straight onto the canvas, no bitmap is
+     * held per chip.
+     */
+    public static final int CHIP_RENDERING_DIRECT = 1;
+
+    /**
+     * The same destination can be added any number of times.
+     */
+    public static final int DUPLICATES_ALLOW = 0;
+
+    /**
+     * A recipient whose destination is already present is dropped.
+     */
+    public static final int DUPLICATES_REJECT = 1;
+
+    /**
+     * A recipient whose destination is already present is dropped, the chip already present
+     * takes its contact details if they are better.
+     */
+    public static final int DUPLICATES_MERGE = 2;
 
     private RecipientTextWatcher mTextWatcher;
 
@@ -136,29 +184,28 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
 
     private static int sExcessTopPadding = -1;
 
-    private static int sSelectedTextColor = -1;
-
     // Resources for displaying chips.
 
-    private Drawable mChipBackground = null;
-
-    private Drawable mChipBackgroundPressed;
-
-    private Drawable mChipDelete;
+    private RecipientRenderingContext mRenderingContext;
 
     private int mChipPadding;
 
     private int mAlternatesLayout;
 
-    private Bitmap mDefaultContactPhoto;
-
     private TextView mMoreItem;
 
     private float mChipHeight;
 
     private float mChipFontSize;
 
-    private Drawable mInvalidChipBackground;
+    private int mChipRenderingMode = CHIP_RENDERING_BITMAP;
+
+    private int mDuplicatePolicy = DUPLICATES_ALLOW;
+
+    /**
+     * Config of chip bitmaps, null to choose it by the opacity of the chip background.
+     */
+    private Bitmap.Config mChipBitmapConfig;
 
     private float mLineSpacingExtra;
 
@@ -166,6 +213,17 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
 
     private int mActionBarHeight;
 
+    /**
+     * Rasterizes chips of bulk appends off the UI thread, created lazily.
+     */
+    private ChipRasterizer mChipRasterizer;
+
+    /**
+     * Chips with deferred rasterization that were rasterized, or are being rasterized, when they
+     * came near the viewport. They give their pixels back once far off-screen.
+     */
+    private final ArrayList<DrawableRecipientChip> mLazyRasterizedChips = new ArrayList<>();
+
     /**
      * Flag that is set to true, when we are creating new chip and we do not want another to interfere
      */
@@ -173,7 +231,16 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
 
     private int mPendingChipsCount = 0;
 
-    private final ArrayList<String> mPendingChips = new ArrayList<>();
+    private final ArrayList<PendingChip> mPendingChips = new ArrayList<>();
+
+    private final FrameBudgetScheduler mChipScheduler = new FrameBudgetScheduler();
+
+    private final PendingChipsTask mPendingChipsTask = new PendingChipsTask();
+
+    /**
+     * Recipients added before the view was laid out, see {@link #addRecipients(Collection)}.
+     */
+    private ArrayList<RecipientEntry> mPendingRecipients;
 
     private ArrayList<DrawableRecipientChip> mTemporaryRecipients;
 
@@ -183,14 +250,41 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
 
     private ArrayList<DrawableRecipientChip> mRemovedSpans;
 
+    /**
+     * Changed whenever {@link #mRemovedSpans} is.
+     */
+    private int mRemovedSpansVersion;
+
+    /**
+     * Last result of {@link #getRecipients()} and the versions of chips it was built from.
+     */
+    private List<RecipientEntry> mRecipients;
+
+    private int mRecipientsVersion;
+
+    private int mRecipientsHiddenVersion;
+
     private DrawableRecipientChip mSelectedChip;
 
+    /**
+     * Chips of the text in offset order, see {@link #getChipIndex()}.
+     */
+    private final RecipientChipIndex mChipIndex = new RecipientChipIndex();
+
     private boolean mShouldShrink = true;
 
     private boolean mTriedGettingScrollView;
 
     private boolean mAttachedToWindow;
 
+    /**
+     * Set while the text is edited in a batch, see {@link #beginChipBatchEdit()}. Filtering is
+     * skipped meanwhile and done once at the end.
+     */
+    private boolean mFilteringBlocked;
+
+    private boolean mFilteringSkipped;
+
     private int mCheckedItem;
 
     private boolean mDragEnabled = false;
@@ -220,6 +314,25 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
 
     };
 
+    private final Runnable mUpdateChipViewport = new Runnable() {
+
+        @Override
+        public void run() {
+            updateChipViewport();
+        }
+
+    };
+
+    private final ViewTreeObserver.OnScrollChangedListener mScrollChangedListener =
+            new ViewTreeObserver.OnScrollChangedListener() {
+
+                @Override
+                public void onScrollChanged() {
+                    scheduleChipViewportUpdate();
+                }
+
+            };
+
     private Runnable mDelayedShrink = new Runnable() {
 
         @Override
@@ -232,13 +345,7 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
     public RecipientEditTextView(Context context, AttributeSet attrs) {
         super(context, attrs);
         setChipDimensions(context, attrs);
-        if (sSelectedTextColor == -1) {
-            sSelectedTextColor = context.getResources().getColor(android.R.color.white);
-        }
-        // TODO: use Compat ListPopup
-        mAlternatesPopup = new ListPopupWindow(context);
-        mAddressPopup = new ListPopupWindow(context);
-        mCopyDialog = new Dialog(context);
+        setRenderingContext(new RecipientRenderingContext(context, attrs));
         mAlternatesListener = new AdapterView.OnItemClickListener() {
             @Override
             public void onItemClick(AdapterView<?> adapterView, View view, int position,
@@ -278,45 +385,27 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
                 0);
         Resources r = getContext().getResources();
 
-        mChipBackground = a.getDrawable(R.styleable.RecipientEditTextView_chipBackground);
-        if (mChipBackground == null) {
-            mChipBackground = r.getDrawable(R.drawable.chip_background);
-        }
-        mChipBackgroundPressed = a
-                .getDrawable(R.styleable.RecipientEditTextView_chipBackgroundPressed);
-        if (mChipBackgroundPressed == null) {
-            mChipBackgroundPressed = r.getDrawable(R.drawable.chip_background_selected);
-        }
-        mChipDelete = a.getDrawable(R.styleable.RecipientEditTextView_chipDelete);
-        if (mChipDelete == null) {
-            mChipDelete = r.getDrawable(R.drawable.chip_delete);
-        }
-        mChipPadding = a.getDimensionPixelSize(R.styleable.RecipientEditTextView_chipPadding, -1);
-        if (mChipPadding == -1) {
-            mChipPadding = (int) r.getDimension(R.dimen.chip_padding);
-        }
         mAlternatesLayout = a.getResourceId(R.styleable.RecipientEditTextView_chipAlternatesLayout,
                 -1);
         if (mAlternatesLayout == -1) {
             mAlternatesLayout = R.layout.chips_alternate_item;
         }
 
-        mDefaultContactPhoto = BitmapFactory.decodeResource(r, R.drawable.ic_contact_picture);
-
-        mMoreItem = (TextView) LayoutInflater.from(getContext()).inflate(R.layout.more_item, null);
-
-        mChipHeight = a.getDimensionPixelSize(R.styleable.RecipientEditTextView_chipHeight, -1);
-        if (mChipHeight == -1) {
-            mChipHeight = r.getDimension(R.dimen.chip_height);
-        }
-        mChipFontSize = a.getDimensionPixelSize(R.styleable.RecipientEditTextView_chipFontSize, -1);
-        if (mChipFontSize == -1) {
-            mChipFontSize = r.getDimension(R.dimen.chip_text_size);
-        }
-        mInvalidChipBackground = a
-                .getDrawable(R.styleable.RecipientEditTextView_invalidChipBackground);
-        if (mInvalidChipBackground == null) {
-            mInvalidChipBackground = r.getDrawable(R.drawable.chip_background_invalid);
+        mChipRenderingMode = a.getInt(R.styleable.RecipientEditTextView_chipRenderingMode,
+                CHIP_RENDERING_BITMAP);
+        mDuplicatePolicy = a.getInt(R.styleable.RecipientEditTextView_duplicateRecipients,
+                DUPLICATES_ALLOW);
+        switch (a.getInt(R.styleable.RecipientEditTextView_chipBitmapConfig,
+                CHIP_BITMAP_CONFIG_AUTO)) {
+            case CHIP_BITMAP_CONFIG_ARGB_8888:
+                mChipBitmapConfig = Bitmap.Config.ARGB_8888;
+                break;
+            case CHIP_BITMAP_CONFIG_RGB_565:
+                mChipBitmapConfig = Bitmap.Config.RGB_565;
+                break;
+            default:
+                mChipBitmapConfig = null;
+                break;
         }
         mLineSpacingExtra = r.getDimension(R.dimen.line_spacing_extra);
         mMaxLines = r.getInteger(R.integer.chips_max_lines);
@@ -328,6 +417,57 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
         a.recycle();
     }
 
+    /**
+     * Attach the field to chip rendering resources and caches, e.g. shared with other fields of
+     * the same screen. Call it before recipients are added, chips already shown keep the look of
+     * the previous context.
+     */
+    public void setRenderingContext(RecipientRenderingContext renderingContext) {
+        mRenderingContext = renderingContext;
+        mChipPadding = renderingContext.getChipPadding();
+        mChipHeight = renderingContext.getChipHeight();
+        mChipFontSize = renderingContext.getChipFontSize();
+        mChipRasterizer = null;
+    }
+
+    public RecipientRenderingContext getRenderingContext() {
+        return mRenderingContext;
+    }
+
+    private ChipPainter getChipPainter() {
+        return mRenderingContext.getChipPainter();
+    }
+
+    private ListPopupWindow getAlternatesPopup() {
+        if (mAlternatesPopup == null) {
+            // TODO: use Compat ListPopup
+            mAlternatesPopup = new ListPopupWindow(getContext());
+        }
+        return mAlternatesPopup;
+    }
+
+    private ListPopupWindow getAddressPopup() {
+        if (mAddressPopup == null) {
+            mAddressPopup = new ListPopupWindow(getContext());
+        }
+        return mAddressPopup;
+    }
+
+    private Dialog getCopyDialog() {
+        if (mCopyDialog == null) {
+            mCopyDialog = new Dialog(getContext());
+        }
+        return mCopyDialog;
+    }
+
+    private TextView getMoreItem() {
+        if (mMoreItem == null) {
+            mMoreItem = (TextView) LayoutInflater.from(getContext()).inflate(R.layout.more_item,
+                    null);
+        }
+        return mMoreItem;
+    }
+
     private void setActionModeCompat() {
         if (Build.VERSION.SDK_INT == Build.VERSION_CODES.HONEYCOMB) {
             setActionModeHoneyComb();
@@ -367,11 +507,20 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
     @Override
     protected void onDetachedFromWindow() {
         mAttachedToWindow = false;
+        getViewTreeObserver().removeOnScrollChangedListener(mScrollChangedListener);
+        mHandler.removeCallbacks(mUpdateChipViewport);
+        // Stop posting frame callbacks, the pass picks up where it stopped once attached again.
+        mChipScheduler.cancel(mPendingChipsTask);
     }
 
     @Override
     protected void onAttachedToWindow() {
         mAttachedToWindow = true;
+        getViewTreeObserver().addOnScrollChangedListener(mScrollChangedListener);
+        scheduleChipViewportUpdate();
+        if (mPendingChipsCount > 0) {
+            postHandlePendingChips();
+        }
     }
 
     @Override
@@ -397,15 +546,22 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
      */
     @Override
     protected void performFiltering(CharSequence text, int keyCode) {
+        if (mFilteringBlocked) {
+            mFilteringSkipped = true;
+            return;
+        }
+        // Results of earlier constraints are of no use anymore.
+        BaseRecipientAdapter adapter = getAdapter();
+        if (adapter != null) {
+            adapter.cancelFiltering();
+        }
         boolean isCompletedToken = isCompletedToken(text);
         if (enoughToFilter() && !isCompletedToken) {
             int end = getSelectionEnd();
             int start = mTokenizer.findTokenStart(text, end);
             // If this is a RecipientChip, don't filter
             // on its contents.
-            Spannable span = getSpannable();
-            DrawableRecipientChip[] chips = span.getSpans(start, end, DrawableRecipientChip.class);
-            if (chips != null && chips.length > 0) {
+            if (hasChip(start, end)) {
                 return;
             }
         } else if (isCompletedToken) {
@@ -414,16 +570,66 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
         super.performFiltering(text, keyCode);
     }
 
+    @Override
+    public boolean enoughToFilter() {
+        // During a batch edit every change goes to performFiltering, which skips it, instead of
+        // clearing the filter.
+        return mFilteringBlocked || super.enoughToFilter();
+    }
+
+    /**
+     * Starts editing chips of the text in a batch. Layout, input method updates, chip index
+     * upkeep and filtering wait until {@link #endChipBatchEdit()}, which filters once if any of
+     * the edits asked for it.
+     */
+    private void beginChipBatchEdit() {
+        beginBatchEdit();
+        getChipIndex().beginBatchEdit();
+        mFilteringBlocked = true;
+    }
+
+    private void endChipBatchEdit() {
+        mFilteringBlocked = false;
+        getChipIndex().endBatchEdit();
+        endBatchEdit();
+        if (mFilteringSkipped) {
+            mFilteringSkipped = false;
+            if (enoughToFilter()) {
+                performFiltering(getText(), KeyEvent.KEYCODE_UNKNOWN);
+            } else {
+                dismissDropDown();
+            }
+        }
+    }
+
+    @Override
+    protected void performFiltering(CharSequence text, int start, int end, int keyCode) {
+        // Take the generation of the query now, the filter thread may get to it much later.
+        BaseRecipientAdapter adapter = getAdapter();
+        if (adapter != null) {
+            adapter.requestFiltering(text, start, end);
+        }
+        super.performFiltering(text, start, end, keyCode);
+    }
+
     boolean isCompletedToken(CharSequence text) {
-        if (TextUtils.isEmpty(text)) {
+        return isCompletedToken(text, mTokenizer);
+    }
+
+    static boolean isCompletedToken(CharSequence text, Tokenizer tokenizer) {
+        if (text == null || text.length() == 0) {
             return false;
         }
         // Check to see if this is a completed token before filtering.
         int end = text.length();
-        int start = mTokenizer.findTokenStart(text, end);
-        String token = text.toString().substring(start, end).trim();
-        if (!TextUtils.isEmpty(token)) {
-            char atEnd = token.charAt(token.length() - 1);
+        int start = tokenizer.findTokenStart(text, end);
+        // Find the last character of the trimmed token in place, this runs on every keystroke.
+        int last = end - 1;
+        while (last >= start && text.charAt(last) <= ' ') {
+            last--;
+        }
+        if (last >= start) {
+            char atEnd = text.charAt(last);
             return atEnd == COMMIT_CHAR_COMMA || atEnd == COMMIT_CHAR_SEMICOLON;
         }
         return false;
@@ -494,6 +700,7 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
             int spanStart = spannable.getSpanStart(currentChip);
             int spanEnd = spannable.getSpanEnd(currentChip);
             spannable.removeSpan(currentChip);
+            recycleChip(currentChip);
             editable.delete(spanStart, spanEnd);
             setCursorVisible(true);
             setSelection(editable.length());
@@ -505,6 +712,7 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
             int start = getChipStart(currentChip);
             int end = getChipEnd(currentChip);
             getSpannable().removeSpan(currentChip);
+            recycleChip(currentChip);
             DrawableRecipientChip newChip;
             try {
                 if (mNoChips) {
@@ -526,13 +734,14 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
             if (shouldShowEditableText(newChip)) {
                 scrollLineIntoView(getLayout().getLineForOffset(getChipStart(newChip)));
             }
-            showAddress(newChip, mAddressPopup, getWidth());
+            showAddress(newChip, getAddressPopup(), getWidth());
             setCursorVisible(false);
             return newChip;
         } else {
             int start = getChipStart(currentChip);
             int end = getChipEnd(currentChip);
             getSpannable().removeSpan(currentChip);
+            recycleChip(currentChip);
             DrawableRecipientChip newChip;
             try {
                 newChip = constructChipSpan(currentChip.getEntry(), true);
@@ -551,7 +760,7 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
             if (shouldShowEditableText(newChip)) {
                 scrollLineIntoView(getLayout().getLineForOffset(getChipStart(newChip)));
             }
-            showAlternates(newChip, mAlternatesPopup, getWidth());
+            showAlternates(newChip, getAlternatesPopup(), getWidth());
             setCursorVisible(false);
             return newChip;
         }
@@ -700,6 +909,7 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
             toDelete++;
         }
         spannable.removeSpan(chip);
+        recycleChip(chip);
         if (spanStart >= 0 && toDelete > 0) {
             text.delete(spanStart, toDelete);
         }
@@ -726,6 +936,7 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
         if (mTextWatcher != null) {
             removeTextChangedListener(mTextWatcher);
         }
+        int appendStart = getText().length();
         super.append(text, start, end);
         if (!TextUtils.isEmpty(text) && TextUtils.getTrimmedLength(text) > 0) {
             String displayString = text.toString();
@@ -739,7 +950,7 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
             if (!TextUtils.isEmpty(displayString)
                     && TextUtils.getTrimmedLength(displayString) > 0) {
                 mPendingChipsCount++;
-                mPendingChips.add(displayString);
+                mPendingChips.add(new PendingChip(displayString, appendStart));
             }
         }
         // Put a message on the queue to make sure we ALWAYS handle pending
@@ -750,6 +961,85 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
         mHandler.post(mAddTextWatcher);
     }
 
+    /**
+     * Add already resolved recipients as chips at the end of the field, e.g. when opening a
+     * draft. Unlike {@link #append(CharSequence)}, the entries are not tokenized, validated or
+     * looked up again and all chips are added in a single edit of the text. Recipients added
+     * before the view is laid out are added once its width is known, those added while appended
+     * text is still being turned into chips once that is done.
+     */
+    public void addRecipients(Collection<RecipientEntry> entries) {
+        if (entries == null || entries.isEmpty()) {
+            return;
+        }
+        if (getViewWidth() <= 0 || mPendingChipsCount > 0) {
+            // Chips are measured against the width of the view, and added after the pending ones
+            // without rushing those out of their frame budget.
+            if (mPendingRecipients == null) {
+                mPendingRecipients = new ArrayList<>();
+            }
+            mPendingRecipients.addAll(entries);
+            return;
+        }
+        boolean hadMoreChip = mMoreChip != null;
+        if (hadMoreChip) {
+            removeMoreChip();
+        }
+        int chipCount = getChipIndex().size();
+        // Duplicates among the added recipients are not in the text yet.
+        HashSet<String> added = mDuplicatePolicy != DUPLICATES_ALLOW ? new HashSet<String>() : null;
+        SpannableStringBuilder builder = new SpannableStringBuilder();
+        for (RecipientEntry entry : entries) {
+            if (added != null) {
+                String key = RecipientChipIndex.normalizeDestination(entry.getDestination());
+                if (key != null && (isRejectedDuplicate(entry) || !added.add(key))) {
+                    mergeDuplicate(entry);
+                    continue;
+                }
+            }
+            String text = createAddressText(entry, false);
+            if (text == null || TextUtils.getTrimmedLength(text) == 0) {
+                // Nothing to show for the recipient.
+                continue;
+            }
+            // The chip covers the address with its commit char, followed by a single space.
+            text = text.trim();
+            if (text.charAt(text.length() - 1) != COMMIT_CHAR_COMMA) {
+                text += COMMIT_CHAR_COMMA;
+            }
+            DrawableRecipientChip chip = null;
+            if (!mNoChips) {
+                try {
+                    chip = chipCount < CHIP_LIMIT || !mShouldShrink || hasFocus()
+                            ? constructChipSpan(entry, false, true)
+                            : new InvisibleRecipientChip(entry);
+                } catch (NullPointerException e) {
+                    Log.e(TAG, e.getMessage(), e);
+                }
+            }
+            int chipStart = builder.length();
+            builder.append(text);
+            if (chip != null) {
+                builder.setSpan(chip, chipStart, builder.length(),
+                        Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                chip.setOriginalText(text);
+            }
+            builder.append(COMMIT_CHAR_SPACE);
+            chipCount++;
+        }
+
+        // We don't care about watching text changes while adding.
+        if (mTextWatcher != null) {
+            removeTextChangedListener(mTextWatcher);
+        }
+        getText().append(builder);
+        mHandler.post(mAddTextWatcher);
+        if (hadMoreChip || !hasFocus()) {
+            createMoreChip();
+        }
+        scheduleChipViewportUpdate();
+    }
+
     @Override
     public void onFocusChanged(boolean hasFocus, int direction, Rect previous) {
         super.onFocusChanged(hasFocus, direction, previous);
@@ -808,7 +1098,10 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
             }
             mHandler.post(mAddTextWatcher);
         }
-        createMoreChip();
+        if (mPendingChipsCount <= 0) {
+            // Otherwise the more chip is created once the pending chips are.
+            createMoreChip();
+        }
     }
 
     private void expand() {
@@ -838,34 +1131,29 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
             mMoreChip = null;
             // Re-add the spans that were removed.
             if (mRemovedSpans != null && mRemovedSpans.size() > 0) {
-                // Recreate each removed span.
-                DrawableRecipientChip[] recipients = getSortedRecipients();
-                // Start the search for tokens after the last currently visible
-                // chip.
-                if (recipients == null || recipients.length == 0) {
-                    return;
-                }
-                int end = span.getSpanEnd(recipients[recipients.length - 1]);
-                Editable editable = getText();
-                for (DrawableRecipientChip chip : mRemovedSpans) {
-                    int chipStart;
-                    int chipEnd;
-                    String token;
-                    // Need to find the location of the chip, again.
-                    token = (String) chip.getOriginalText();
-                    // As we find the matching recipient for the remove spans,
-                    // reduce the size of the string we need to search.
-                    // That way, if there are duplicates, we always find the correct
-                    // recipient.
-                    chipStart = editable.toString().indexOf(token, end);
-                    end = chipEnd = Math.min(editable.length(), chipStart + token.length());
-                    // Only set the span if we found a matching token.
-                    if (chipStart != -1) {
-                        editable.setSpan(chip, chipStart, chipEnd,
-                                Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                    }
-                }
+                // Each removed span left a marker over its text, put the span back in its place.
+                // A marker only goes away along with its text, so chips without one are gone.
+                restoreHiddenChips(span);
                 mRemovedSpans.clear();
+                mRemovedSpansVersion++;
+            }
+        }
+    }
+
+    /**
+     * Replace markers of chips hidden by the more chip with the chips. Markers whose text was
+     * deleted are dropped along with their chips.
+     */
+    private void restoreHiddenChips(Spannable spannable) {
+        HiddenChipSpan[] hiddenChips = spannable.getSpans(0, spannable.length(),
+                HiddenChipSpan.class);
+        for (HiddenChipSpan hidden : hiddenChips) {
+            int chipStart = spannable.getSpanStart(hidden);
+            int chipEnd = spannable.getSpanEnd(hidden);
+            spannable.removeSpan(hidden);
+            if (chipStart < chipEnd) {
+                spannable.setSpan(hidden.getChip(), chipStart, chipEnd,
+                        Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
             }
         }
     }
@@ -915,9 +1203,16 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
 
         Editable editable = getText();
         QwertyKeyListener.markAsReplaced(editable, start, end, "");
-        CharSequence chip = createChip(entry, false);
-        if (chip != null && start >= 0 && end >= 0) {
-            editable.replace(start, end, chip);
+        if (isRejectedDuplicate(entry)) {
+            if (start >= 0 && end >= 0) {
+                editable.delete(start, end);
+            }
+            mergeDuplicate(entry);
+        } else {
+            CharSequence chip = createChip(entry, false);
+            if (chip != null && start >= 0 && end >= 0) {
+                editable.replace(start, end, chip);
+            }
         }
         sanitizeBetween();
     }
@@ -933,6 +1228,11 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
                         // that the user can see as many results as possible.
                         if (entries != null && entries.size() > 0) {
                             scrollBottomIntoView();
+                            // Results published while the query is still running don't go
+                            // through the filter completion, which shows the dropdown.
+                            if (hasFocus() && enoughToFilter() && !isPopupShowing()) {
+                                showDropDown();
+                            }
                         }
                     }
                 });
@@ -965,11 +1265,12 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
     public void onSizeChanged(int width, int height, int oldw, int oldh) {
         super.onSizeChanged(width, height, oldw, oldh);
         if (width != 0 && height != 0) {
-            if (mPendingChipsCount > 0) {
+            if (mPendingChipsCount > 0 || mPendingRecipients != null) {
                 postHandlePendingChips();
             } else {
-                checkChipWidths();
+                checkChipWidths(oldw);
             }
+            scheduleChipViewportUpdate();
         }
         // Try to find the scroll view parent, if it exists.
         if (mScrollView == null && !mTriedGettingScrollView) {
@@ -997,63 +1298,123 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
             return;
         }
 
-        if (mPendingChipsCount <= 0) {
+        if (mPendingRecipients != null) {
+            ArrayList<RecipientEntry> pendingRecipients = mPendingRecipients;
+            mPendingRecipients = null;
+            addRecipients(pendingRecipients);
+        }
+
+        if (mPendingChipsCount <= 0 || mChipScheduler.isPending(mPendingChipsTask)) {
             return;
         }
+        // Chips are created a few per frame, so any number of them can be appended.
+        mChipScheduler.post(mPendingChipsTask);
+    }
 
-        synchronized (mPendingChips) {
-            Editable editable = getText();
-            // Tokenize!
-            if (mPendingChipsCount <= MAX_CHIPS_PARSED) {
-                for (int i = 0; i < mPendingChips.size(); i++) {
-                    String current = mPendingChips.get(i);
-                    int tokenStart = editable.toString().indexOf(current);
-                    // Always leave a space at the end between tokens.
-                    int tokenEnd = tokenStart + current.length() - 1;
-                    if (tokenStart >= 0) {
-                        // When we have a valid token, include it with the token
-                        // to the left.
-                        if (tokenEnd < editable.length() - 2
-                                && editable.charAt(tokenEnd) == COMMIT_CHAR_COMMA) {
-                            tokenEnd++;
-                        }
-                        createReplacementChip(tokenStart, tokenEnd, editable, i < CHIP_LIMIT
-                                || !mShouldShrink);
-                    }
+    /**
+     * Turns appended text into chips, one pending chip per step.
+     */
+    private class PendingChipsTask implements FrameBudgetScheduler.Task {
+
+        private int mNext;
+
+        /**
+         * Pending chips are in text order, so one forward pass finds them all.
+         */
+        private int mSearchStart;
+
+        /**
+         * Change of the text length by the chips created so far in this pass. Recorded offsets of
+         * the following pending chips are shifted by it.
+         */
+        private int mOffsetDelta;
+
+        @Override
+        public boolean step() {
+            synchronized (mPendingChips) {
+                if (mNext < mPendingChips.size()) {
+                    createPendingChip(mPendingChips.get(mNext));
+                    mNext++;
                     mPendingChipsCount--;
+                    if (mNext < mPendingChips.size()) {
+                        return true;
+                    }
                 }
-                sanitizeEnd();
-            } else {
-                mNoChips = true;
+                mNext = 0;
+                mSearchStart = 0;
+                mOffsetDelta = 0;
+                onPendingChipsCreated();
+                return false;
             }
+        }
 
-            if (mTemporaryRecipients != null && mTemporaryRecipients.size() > 0
-                    && mTemporaryRecipients.size() <= RecipientAlternatesAdapter.MAX_LOOKUPS) {
-                if (hasFocus() || mTemporaryRecipients.size() < CHIP_LIMIT) {
-                    new RecipientReplacementTask().execute();
-                    mTemporaryRecipients = null;
+        private void createPendingChip(PendingChip pending) {
+            Editable editable = getText();
+            String current = pending.mText;
+            int tokenStart = pending.mStart + mOffsetDelta;
+            if (tokenStart < mSearchStart
+                    || tokenStart + current.length() > editable.length()
+                    || !TextUtils.regionMatches(editable, tokenStart, current, 0,
+                            current.length())) {
+                // The text was edited since it was appended, look for the token.
+                tokenStart = TextUtils.indexOf(editable, current, mSearchStart);
+            }
+            // Always leave a space at the end between tokens.
+            int tokenEnd = tokenStart + current.length() - 1;
+            if (tokenStart >= 0) {
+                // When we have a valid token, include it with the token
+                // to the left.
+                if (tokenEnd < editable.length() - 2
+                        && editable.charAt(tokenEnd) == COMMIT_CHAR_COMMA) {
+                    tokenEnd++;
+                }
+                int length = editable.length();
+                boolean removed = createReplacementChip(tokenStart, tokenEnd, editable,
+                        mNext < CHIP_LIMIT || !mShouldShrink);
+                // Rejected duplicates are deleted and merged ones may change an earlier chip.
+                int delta = editable.length() - length;
+                mOffsetDelta += delta;
+                if (removed) {
+                    // Whatever the deletion does not account for happened before the token.
+                    int deleted = Math.min(tokenEnd + 1, length) - tokenStart;
+                    mSearchStart = tokenStart + delta + deleted;
                 } else {
-                    // Create the "more" chip
-                    mIndividualReplacements = new IndividualReplacementTask();
-                    mIndividualReplacements.execute(new ArrayList<>(
-                            mTemporaryRecipients.subList(0, CHIP_LIMIT)));
-                    if (mTemporaryRecipients.size() > CHIP_LIMIT) {
-                        mTemporaryRecipients = new ArrayList<>(
-                                mTemporaryRecipients.subList(CHIP_LIMIT,
-                                        mTemporaryRecipients.size()));
-                    } else {
-                        mTemporaryRecipients = null;
-                    }
-                    createMoreChip();
+                    mSearchStart = tokenStart + current.length();
                 }
-            } else {
-                // There are too many recipients to look up, so just fall back
-                // to showing addresses for all of them.
+            }
+        }
+    }
+
+    private void onPendingChipsCreated() {
+        scheduleChipViewportUpdate();
+        sanitizeEnd();
+
+        if (mTemporaryRecipients != null && mTemporaryRecipients.size() > 0) {
+            if (hasFocus() || mTemporaryRecipients.size() < CHIP_LIMIT) {
+                new RecipientReplacementTask().execute();
                 mTemporaryRecipients = null;
+            } else {
+                // Create the "more" chip
+                mIndividualReplacements = new IndividualReplacementTask();
+                mIndividualReplacements.execute(new ArrayList<>(
+                        mTemporaryRecipients.subList(0, CHIP_LIMIT)));
+                if (mTemporaryRecipients.size() > CHIP_LIMIT) {
+                    mTemporaryRecipients = new ArrayList<>(
+                            mTemporaryRecipients.subList(CHIP_LIMIT,
+                                    mTemporaryRecipients.size()));
+                } else {
+                    mTemporaryRecipients = null;
+                }
                 createMoreChip();
             }
-            mPendingChipsCount = 0;
-            mPendingChips.clear();
+        } else {
+            mTemporaryRecipients = null;
+            createMoreChip();
+        }
+        mPendingChipsCount = 0;
+        mPendingChips.clear();
+        if (mPendingRecipients != null) {
+            postHandlePendingChips();
         }
     }
 
@@ -1064,27 +1425,35 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
     /**
      * Create a chip that represents just the email address of a recipient. At some later point, this chip will be
      * attached to a real contact entry, if one exists.
+     *
+     * @return True if the token was removed from the text as a rejected duplicate.
      */
-    private void createReplacementChip(int tokenStart, int tokenEnd, Editable editable,
+    private boolean createReplacementChip(int tokenStart, int tokenEnd, Editable editable,
             boolean visible) {
         if (alreadyHasChip(tokenStart, tokenEnd)) {
             // There is already a chip present at this location.
             // Don't recreate it.
-            return;
+            return false;
         }
-        String token = editable.toString().substring(tokenStart, tokenEnd);
+        String token = editable.subSequence(tokenStart, tokenEnd).toString();
         final String trimmedToken = token.trim();
         int commitCharIndex = trimmedToken.lastIndexOf(COMMIT_CHAR_COMMA);
         if (commitCharIndex != -1 && commitCharIndex == trimmedToken.length() - 1) {
             token = trimmedToken.substring(0, trimmedToken.length() - 1);
         }
         RecipientEntry entry = createTokenizedEntry(token);
+        if (entry != null && isRejectedDuplicate(entry)) {
+            // Drop the token along with the space separating it from the next one.
+            editable.delete(tokenStart, Math.min(tokenEnd + 1, editable.length()));
+            mergeDuplicate(entry);
+            return true;
+        }
         if (entry != null) {
             DrawableRecipientChip chip = null;
             try {
                 if (!mNoChips) {
                     chip = visible ?
-                            constructChipSpan(entry, false)
+                            constructChipSpan(entry, false, true)
                             : new InvisibleRecipientChip(entry);
                 }
             } catch (NullPointerException e) {
@@ -1100,6 +1469,7 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
                 mTemporaryRecipients.add(chip);
             }
         }
+        return false;
     }
 
     /**
@@ -1111,9 +1481,8 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
             return;
         }
         // Find the last chip; eliminate any commit characters after it.
-        DrawableRecipientChip[] chips = getSortedRecipients();
         Spannable spannable = getSpannable();
-        if (chips != null && chips.length > 0) {
+        if (getChipIndex().size() > 0) {
             int end;
             mMoreChip = getMoreChip();
             if (mMoreChip != null) {
@@ -1204,17 +1573,18 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
             return;
         }
         mCopyAddress = address;
-        mCopyDialog.setTitle(address);
-        mCopyDialog.setContentView(R.layout.copy_chip_dialog_layout);
-        mCopyDialog.setCancelable(true);
-        mCopyDialog.setCanceledOnTouchOutside(true);
-        Button button = (Button) mCopyDialog.findViewById(android.R.id.button1);
+        Dialog copyDialog = getCopyDialog();
+        copyDialog.setTitle(address);
+        copyDialog.setContentView(R.layout.copy_chip_dialog_layout);
+        copyDialog.setCancelable(true);
+        copyDialog.setCanceledOnTouchOutside(true);
+        Button button = (Button) copyDialog.findViewById(android.R.id.button1);
         button.setOnClickListener(this);
         int btnTitleId = R.string.copy_email;
         String buttonTitle = getContext().getResources().getString(btnTitleId);
         button.setText(buttonTitle);
-        mCopyDialog.setOnDismissListener(this);
-        mCopyDialog.show();
+        copyDialog.setOnDismissListener(this);
+        copyDialog.show();
     }
 
     @Override
@@ -1224,7 +1594,7 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
                 Context.CLIPBOARD_SERVICE);
         // TODO: use old method for clipboard
         clipboard.setPrimaryClip(ClipData.newPlainText("", mCopyAddress));
-        mCopyDialog.dismiss();
+        getCopyDialog().dismiss();
     }
 
     @Override
@@ -1234,7 +1604,7 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
 
     @Override
     public void onCheckedItemChanged(int position) {
-        ListView listView = mAlternatesPopup.getListView();
+        ListView listView = getAlternatesPopup().getListView();
         if (listView != null && listView.getCheckedItemCount() == 0) {
             listView.setItemChecked(position, true);
         }
@@ -1546,36 +1916,23 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
 
         // If the offset is beyond or at the end of the text,
         // leave it alone.
-        if (offset >= realLength) {
+        if (offset >= realLength || offset < 0) {
             return offset;
         }
-        Editable editable = getText();
-        while (offset >= 0 && findText(editable, offset) == -1 && findChip(offset) == null) {
+        // Offsets after the end of the closest chip before are not in any chip, so only
+        // whitespace has to be walked until that end.
+        DrawableRecipientChip chip = getChipIndex().findChipBefore(offset);
+        int chipEnd = chip != null ? getChipEnd(chip) : -1;
+        while (offset > chipEnd && text.charAt(offset) == ' ') {
             // Keep walking backward!
             offset--;
         }
         return offset;
     }
 
-    private static int findText(Editable text, int offset) {
-        if (text.charAt(offset) != ' ') {
-            return offset;
-        }
-        return -1;
-    }
-
     private DrawableRecipientChip findChip(int offset) {
-        DrawableRecipientChip[] chips =
-                getSpannable().getSpans(0, getText().length(), DrawableRecipientChip.class);
         // Find the chip that contains this offset.
-        for (DrawableRecipientChip chip : chips) {
-            int start = getChipStart(chip);
-            int end = getChipEnd(chip);
-            if (offset >= start && offset <= end) {
-                return chip;
-            }
-        }
-        return null;
+        return getChipIndex().findChip(offset);
     }
 
     @Override
@@ -1608,6 +1965,11 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
     // and we need to replace it with top level chip (find corresponding email)
     private class RecipientReplacementTask extends AsyncTask<Void, Void, Void> {
 
+        /**
+         * Chips to look up, shown and hidden, taken on the UI thread before the lookup starts.
+         */
+        private List<DrawableRecipientChip> mRecipients;
+
         @Override
         protected void onPreExecute() {
             // Ensure everything is in chip-form already, so we don't have text that slowly gets
@@ -1634,6 +1996,8 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
             }
 
             processReplacements(originalRecipients, replacements);
+            // Replaced chips were swapped for their replacements in the list.
+            mRecipients = Collections.unmodifiableList(originalRecipients);
         }
 
         private DrawableRecipientChip createFreeChip(RecipientEntry entry) {
@@ -1641,7 +2005,7 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
                 if (mNoChips) {
                     return null;
                 }
-                return constructChipSpan(entry, false);
+                return constructChipSpan(entry, false, true);
             } catch (NullPointerException e) {
                 Log.e(TAG, e.getMessage(), e);
                 return null;
@@ -1656,19 +2020,22 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
             // For each chip in the list, look up the matching contact.
             // If there is a match, replace that chip with the matching
             // chip.
-            final ArrayList<DrawableRecipientChip> recipients =
-                    new ArrayList<>();
-            DrawableRecipientChip[] existingChips = getSortedRecipients();
-            Collections.addAll(recipients, existingChips);
-            if (mRemovedSpans != null) {
-                recipients.addAll(mRemovedSpans);
-            }
+            final List<DrawableRecipientChip> recipients = mRecipients;
             ArrayList<String> displayNames = new ArrayList<>();
-            DrawableRecipientChip chip;
-            for (DrawableRecipientChip recipient : recipients) {
-                chip = recipient;
-                if (chip != null) {
-                    displayNames.add(chip.getEntry().getDisplayName());
+            // Chips that may be replaced, mapped once by the keys results come back with, so each
+            // batch of results only touches its own chips.
+            final HashMap<String, List<DrawableRecipientChip>> chipsByAddress = new HashMap<>();
+            final HashMap<String, List<DrawableRecipientChip>> chipsByDestination =
+                    new HashMap<>();
+            for (DrawableRecipientChip chip : recipients) {
+                if (chip == null) {
+                    continue;
+                }
+                displayNames.add(chip.getEntry().getDisplayName());
+                if (RecipientEntry.isCreatedRecipient(chip.getEntry().getContactId())) {
+                    String destination = chip.getEntry().getDestination();
+                    putChip(chipsByAddress, tokenizeAddress(destination), chip);
+                    putChip(chipsByDestination, destination, chip);
                 }
             }
             final BaseRecipientAdapter adapter = getAdapter();
@@ -1676,101 +2043,79 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
                     new RecipientAlternatesAdapter.RecipientMatchCallback() {
                         @Override
                         public void matchesFound(Map<String, RecipientEntry> entries) {
-                            final ArrayList<DrawableRecipientChip> replacements =
-                                    new ArrayList<>();
-                            for (final DrawableRecipientChip temp : recipients) {
-                                RecipientEntry entry = null;
-                                if (temp != null && RecipientEntry.isCreatedRecipient(
-                                        temp.getEntry().getContactId())
-                                        && getSpannable().getSpanStart(temp) != -1) {
-                                    // Replace this.
-                                    entry = createValidatedEntry(
-                                            entries.get(tokenizeAddress(temp.getEntry()
-                                                    .getDestination())));
+                            final List<DrawableRecipientChip> found = new ArrayList<>();
+                            final List<DrawableRecipientChip> replacements = new ArrayList<>();
+                            for (Map.Entry<String, RecipientEntry> match : entries.entrySet()) {
+                                List<DrawableRecipientChip> chips =
+                                        chipsByAddress.remove(match.getKey());
+                                if (chips == null) {
+                                    continue;
                                 }
-                                if (entry != null) {
-                                    replacements.add(createFreeChip(entry));
-                                } else {
-                                    replacements.add(null);
+                                RecipientEntry entry = createValidatedEntry(match.getValue());
+                                for (DrawableRecipientChip chip : chips) {
+                                    found.add(chip);
+                                    replacements.add(entry != null ? createFreeChip(entry) : null);
                                 }
                             }
-                            processReplacements(recipients, replacements);
+                            processReplacements(found, replacements);
                         }
 
                         @Override
                         public void matchesNotFound(final Set<String> unfoundAddresses) {
-                            final List<DrawableRecipientChip> replacements =
-                                    new ArrayList<>(unfoundAddresses.size());
-
-                            for (final DrawableRecipientChip temp : recipients) {
-                                if (temp != null && RecipientEntry.isCreatedRecipient(
-                                        temp.getEntry().getContactId())
-                                        && getSpannable().getSpanStart(temp) != -1) {
-                                    if (unfoundAddresses.contains(
-                                            temp.getEntry().getDestination())) {
-                                        replacements.add(createFreeChip(temp.getEntry()));
-                                    } else {
-                                        replacements.add(null);
-                                    }
-                                } else {
-                                    replacements.add(null);
+                            final List<DrawableRecipientChip> unfound = new ArrayList<>();
+                            final List<DrawableRecipientChip> replacements = new ArrayList<>();
+                            for (String address : unfoundAddresses) {
+                                List<DrawableRecipientChip> chips =
+                                        chipsByDestination.remove(address);
+                                if (chips == null) {
+                                    continue;
+                                }
+                                for (DrawableRecipientChip chip : chips) {
+                                    unfound.add(chip);
+                                    replacements.add(createFreeChip(chip.getEntry()));
                                 }
                             }
-
-                            processReplacements(recipients, replacements);
+                            processReplacements(unfound, replacements);
                         }
                     });
             return null;
         }
 
+        private void putChip(HashMap<String, List<DrawableRecipientChip>> chips, String key,
+                DrawableRecipientChip chip) {
+            List<DrawableRecipientChip> keyChips = chips.get(key);
+            if (keyChips == null) {
+                keyChips = new ArrayList<>(1);
+                chips.put(key, keyChips);
+            }
+            keyChips.add(chip);
+        }
+
         private void processReplacements(final List<DrawableRecipientChip> recipients,
                 final List<DrawableRecipientChip> replacements) {
             if (replacements != null && replacements.size() > 0) {
                 final Runnable runnable = new Runnable() {
                     @Override
                     public void run() {
-                        final Editable text = new SpannableStringBuilder(getText());
-                        int i = 0;
-                        for (final DrawableRecipientChip chip : recipients) {
-                            final DrawableRecipientChip replacement = replacements.get(i);
-                            if (replacement != null) {
-                                final RecipientEntry oldEntry = chip.getEntry();
-                                final RecipientEntry newEntry = replacement.getEntry();
-                                final boolean isBetter =
-                                        RecipientAlternatesAdapter.getBetterRecipient(
-                                                oldEntry, newEntry) == newEntry;
-
-                                if (isBetter) {
-                                    // Find the location of the chip in the text currently shown.
-                                    final int start = text.getSpanStart(chip);
-                                    if (start != -1) {
-                                        // Replacing the entirety of what the chip represented,
-                                        // including the extra space dividing it from other chips.
-                                        final int end =
-                                                Math.min(text.getSpanEnd(chip) + 1, text.length());
-                                        text.removeSpan(chip);
-                                        // Make sure we always have just 1 space at the end to
-                                        // separate this chip from the next chip.
-                                        final SpannableString displayText =
-                                                new SpannableString(createAddressText(
-                                                        replacement.getEntry()).trim() + " ");
-                                        displayText.setSpan(replacement, 0,
-                                                displayText.length() - 1,
-                                                Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-                                        // Replace the old text we found with with the new display
-                                        // text, which now may also contain the display name of the
-                                        // recipient.
-                                        text.replace(start, end, displayText);
-                                        replacement.setOriginalText(displayText.toString());
-                                        replacements.set(i, null);
-
-                                        recipients.set(i, replacement);
-                                    }
-                                }
-                            }
-                            i++;
+                        // Edit the shown text in place, so only the replaced chips are laid out
+                        // again. Recipients are in text order, going from the last one keeps the
+                        // offsets of the chips still to be replaced valid.
+                        final Editable text = getText();
+                        final List<DrawableRecipientChip> replaced = new ArrayList<>();
+                        if (mTextWatcher != null) {
+                            removeTextChangedListener(mTextWatcher);
+                        }
+                        beginChipBatchEdit();
+                        try {
+                            replaceChips(text, recipients, replacements, replaced);
+                        } finally {
+                            endChipBatchEdit();
+                        }
+                        mHandler.post(mAddTextWatcher);
+                        for (DrawableRecipientChip chip : replaced) {
+                            recycleChip(chip);
                         }
-                        setText(text);
+                        scheduleChipViewportUpdate();
                     }
                 };
 
@@ -1781,6 +2126,53 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
                 }
             }
         }
+
+        /**
+         * Replaces chips by their better replacements, collecting the replaced chips.
+         */
+        private void replaceChips(Editable text, List<DrawableRecipientChip> recipients,
+                List<DrawableRecipientChip> replacements, List<DrawableRecipientChip> replaced) {
+            for (int i = recipients.size() - 1; i >= 0; i--) {
+                final DrawableRecipientChip chip = recipients.get(i);
+                final DrawableRecipientChip replacement = replacements.get(i);
+                if (replacement != null) {
+                    final RecipientEntry oldEntry = chip.getEntry();
+                    final RecipientEntry newEntry = replacement.getEntry();
+                    final boolean isBetter =
+                            RecipientAlternatesAdapter.getBetterRecipient(
+                                    oldEntry, newEntry) == newEntry;
+
+                    if (isBetter) {
+                        // Find the location of the chip in the text currently shown.
+                        final int start = text.getSpanStart(chip);
+                        if (start != -1) {
+                            // Replacing the entirety of what the chip represented,
+                            // including the extra space dividing it from other chips.
+                            final int end =
+                                    Math.min(text.getSpanEnd(chip) + 1, text.length());
+                            text.removeSpan(chip);
+                            // Make sure we always have just 1 space at the end to
+                            // separate this chip from the next chip.
+                            final SpannableString displayText =
+                                    new SpannableString(createAddressText(
+                                            replacement.getEntry()).trim() + " ");
+                            displayText.setSpan(replacement, 0,
+                                    displayText.length() - 1,
+                                    Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                            // Replace the old text we found with with the new display
+                            // text, which now may also contain the display name of the
+                            // recipient.
+                            text.replace(start, end, displayText);
+                            replacement.setOriginalText(displayText.toString());
+                            replacements.set(i, null);
+                            replaced.add(chip);
+
+                            recipients.set(i, replacement);
+                        }
+                    }
+                }
+            }
+        }
     }
 
     private RecipientEntry createValidatedEntry(RecipientEntry item) {
@@ -1881,13 +2273,25 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
         }
     }
 
-    private DrawableRecipientChip getLastChip() {
-        DrawableRecipientChip last = null;
-        DrawableRecipientChip[] chips = getSortedRecipients();
-        if (chips != null && chips.length > 0) {
-            last = chips[chips.length - 1];
+    /**
+     * Text appended by {@link #append(CharSequence, int, int)} waiting to become a chip.
+     */
+    private static class PendingChip {
+        final String mText;
+
+        /**
+         * Offset the text was appended at.
+         */
+        final int mStart;
+
+        PendingChip(String text, int start) {
+            mText = text;
+            mStart = start;
         }
-        return last;
+    }
+
+    private DrawableRecipientChip getLastChip() {
+        return getChipIndex().getLastChip();
     }
 
     /**
@@ -1907,6 +2311,12 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
         if (tempMore.length > 0) {
             getSpannable().removeSpan(tempMore[0]);
         }
+        // Chips still hidden by an earlier more chip are hidden again along with the others.
+        restoreHiddenChips(getSpannable());
+        if (mRemovedSpans != null && mRemovedSpans.size() > 0) {
+            mRemovedSpans.clear();
+            mRemovedSpansVersion++;
+        }
         DrawableRecipientChip[] recipients = getSortedRecipients();
 
         if (recipients == null || recipients.length <= CHIP_LIMIT) {
@@ -1918,9 +2328,12 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
         int overage = numRecipients - CHIP_LIMIT;
         MoreImageSpan moreSpan = createMoreSpan(overage);
         mRemovedSpans = new ArrayList<>();
+        mRemovedSpansVersion++;
         int totalReplaceStart = 0;
         int totalReplaceEnd = 0;
         Editable text = getText();
+        int[] hiddenStarts = new int[overage];
+        int[] hiddenEnds = new int[overage];
         for (int i = numRecipients - overage; i < recipients.length; i++) {
             mRemovedSpans.add(recipients[i]);
             if (i == numRecipients - overage) {
@@ -1929,12 +2342,14 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
             if (i == recipients.length - 1) {
                 totalReplaceEnd = spannable.getSpanEnd(recipients[i]);
             }
+            int spanStart = spannable.getSpanStart(recipients[i]);
+            int spanEnd = spannable.getSpanEnd(recipients[i]);
             if (mTemporaryRecipients == null || !mTemporaryRecipients.contains(recipients[i])) {
-                int spanStart = spannable.getSpanStart(recipients[i]);
-                int spanEnd = spannable.getSpanEnd(recipients[i]);
-                recipients[i].setOriginalText(text.toString().substring(spanStart, spanEnd));
+                recipients[i].setOriginalText(text.subSequence(spanStart, spanEnd).toString());
             }
             spannable.removeSpan(recipients[i]);
+            hiddenStarts[i - numRecipients + overage] = spanStart;
+            hiddenEnds[i - numRecipients + overage] = spanEnd;
         }
         if (totalReplaceEnd < text.length()) {
             totalReplaceEnd = text.length();
@@ -1944,6 +2359,12 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
         SpannableString chipText = new SpannableString(text.subSequence(start, end));
         chipText.setSpan(moreSpan, 0, chipText.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
         text.replace(start, end, chipText);
+        // The replace drops spans inside the replaced range, mark the hidden chips afterwards.
+        // The text itself is the same, so the offsets still hold.
+        for (int i = 0; i < overage; i++) {
+            text.setSpan(new HiddenChipSpan(mRemovedSpans.get(i)), hiddenStarts[i],
+                    hiddenEnds[i], Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
         mMoreChip = moreSpan;
         // If adding the +more chip goes over the limit, resize accordingly.
         if (getLineCount() > mMaxLines) {
@@ -1983,12 +2404,13 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
     }
 
     private MoreImageSpan createMoreSpan(int count) {
-        String moreText = String.format(mMoreItem.getText().toString(), count);
+        TextView moreItem = getMoreItem();
+        String moreText = String.format(moreItem.getText().toString(), count);
         TextPaint morePaint = new TextPaint(getPaint());
-        morePaint.setTextSize(mMoreItem.getTextSize());
-        morePaint.setColor(mMoreItem.getCurrentTextColor());
-        int width = (int) morePaint.measureText(moreText) + mMoreItem.getPaddingLeft()
-                + mMoreItem.getPaddingRight();
+        morePaint.setTextSize(moreItem.getTextSize());
+        morePaint.setColor(moreItem.getCurrentTextColor());
+        int width = (int) morePaint.measureText(moreText) + moreItem.getPaddingLeft()
+                + moreItem.getPaddingRight();
         int height = getLineHeight();
         Bitmap drawable = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
         Canvas canvas = new Canvas(drawable);
@@ -2004,25 +2426,58 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
         return new MoreImageSpan(result);
     }
 
-    private void checkChipWidths() {
+    /**
+     * Re-render chips that look different at the current width than at the old one, i.e. chips
+     * whose text is ellipsized at least at one of the widths.
+     */
+    private void checkChipWidths(int oldWidth) {
         // Check the widths of the associated chips.
         DrawableRecipientChip[] chips = getSortedRecipients();
-        if (chips != null) {
+        if (chips != null && getWidth() > 0) {
+            float limit = Math.min(calculateAvailableWidth(oldWidth), calculateAvailableWidth());
             Rect bounds;
             for (DrawableRecipientChip chip : chips) {
-                bounds = chip.getBounds();
-                if (getWidth() > 0 && bounds.right - bounds.left > getWidth()) {
-                    // Need to redraw that chip.
-                    replaceChip(chip, chip.getEntry());
+                float naturalWidth = getChipNaturalWidth(chip);
+                if (naturalWidth >= 0) {
+                    if (naturalWidth > limit) {
+                        replaceChip(chip, chip.getEntry());
+                    }
+                } else {
+                    bounds = chip.getBounds();
+                    if (bounds.right - bounds.left > getWidth()) {
+                        // Need to redraw that chip.
+                        replaceChip(chip, chip.getEntry());
+                    }
                 }
             }
         }
     }
 
+    /**
+     * Returns the available width the chip needs to show its whole text, or -1 if unknown.
+     */
+    private static float getChipNaturalWidth(DrawableRecipientChip chip) {
+        if (chip instanceof DirectRecipientChip) {
+            return ((DirectRecipientChip) chip).getChipLayout().getNaturalWidth();
+        }
+        if (chip instanceof VisibleRecipientChip) {
+            Drawable drawable = ((VisibleRecipientChip) chip).getDrawable();
+            if (drawable instanceof ChipDrawable) {
+                return ((ChipDrawable) drawable).getNaturalWidth();
+            }
+        }
+        return -1;
+    }
+
     /**
      * Replace this currently selected chip with a new chip that uses the contact data provided.
      */
     private void replaceChip(DrawableRecipientChip chip, RecipientEntry entry) {
+        // A chip keeping its recipient, e.g. rendered again or given better contact details,
+        // stays even if another chip has the same destination.
+        boolean newRecipient = !TextUtils.equals(
+                RecipientChipIndex.normalizeDestination(chip.getEntry().getDestination()),
+                RecipientChipIndex.normalizeDestination(entry.getDestination()));
         boolean wasSelected = chip == mSelectedChip;
         if (wasSelected) {
             mSelectedChip = null;
@@ -2030,9 +2485,19 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
         int start = getChipStart(chip);
         int end = getChipEnd(chip);
         getSpannable().removeSpan(chip);
+        recycleChip(chip);
         Editable editable = getText();
-        CharSequence chipText = createChip(entry, false);
-        if (chipText != null) {
+        // Replacing the chip with another recipient present elsewhere removes it.
+        boolean duplicate = newRecipient && isRejectedDuplicate(entry);
+        CharSequence chipText = duplicate ? "" : createChip(entry, false);
+        if (duplicate && start != -1 && end != -1) {
+            int toDelete = end;
+            while (toDelete < editable.length() && editable.charAt(toDelete) == ' ') {
+                toDelete++;
+            }
+            editable.delete(start, toDelete);
+            mergeDuplicate(entry);
+        } else if (chipText != null) {
             if (start == -1 || end == -1) {
                 Log.e(TAG, "The chip to replace does not exist but should.");
                 editable.insert(0, chipText);
@@ -2088,6 +2553,7 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
             getSpannable().removeSpan(chip);
             QwertyKeyListener.markAsReplaced(editable, start, end, "");
             editable.removeSpan(chip);
+            recycleChip(chip);
             try {
                 if (!mNoChips) {
                     editable.setSpan(constructChipSpan(chip.getEntry(), false),
@@ -2207,9 +2673,8 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
                 // If the item deleted is a space, and the thing before the
                 // space is a chip, delete the entire span.
                 int selStart = getSelectionStart();
-                DrawableRecipientChip[] recipients = getSpannable().getSpans(selStart, selStart,
-                        DrawableRecipientChip.class);
-                if (recipients.length > 0) {
+                DrawableRecipientChip chip = getChipIndex().findChip(selStart);
+                if (chip != null) {
                     // There is a chip there! Just remove it.
                     Editable editable = getText();
                     // Add the separator token.
@@ -2220,7 +2685,8 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
                         tokenEnd = editable.length();
                     }
                     editable.delete(tokenStart, tokenEnd);
-                    getSpannable().removeSpan(recipients[0]);
+                    getSpannable().removeSpan(chip);
+                    recycleChip(chip);
                 }
             } else if (count > before) {
                 if (mSelectedChip != null
@@ -2244,6 +2710,7 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
                         DrawableRecipientChip.class);
                 for (DrawableRecipientChip chip : chips) {
                     spannable.removeSpan(chip);
+                    recycleChip(chip);
                 }
                 if (mMoreChip != null) {
                     spannable.removeSpan(mMoreChip);
@@ -2283,13 +2750,11 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
                 }
                 if (last == COMMIT_CHAR_SPACE) {
                     // Check if this is a valid email address. If it is,
-                    // commit it.
-                    String text = getText().toString();
-                    int tokenStart = mTokenizer.findTokenStart(text, getSelectionEnd());
-                    String sub = text.substring(tokenStart, mTokenizer.findTokenEnd(text,
-                            tokenStart));
-                    if (!TextUtils.isEmpty(sub) && mValidator != null &&
-                            mValidator.isValid(sub)) {
+                    // commit it. Only the validator gets a copy of the token.
+                    int tokenStart = mTokenizer.findTokenStart(s, getSelectionEnd());
+                    int tokenEnd = mTokenizer.findTokenEnd(s, tokenStart);
+                    if (tokenEnd > tokenStart && mValidator != null
+                            && mValidator.isValid(s.subSequence(tokenStart, tokenEnd))) {
                         commitByCharacter();
                     }
                 }
@@ -2330,6 +2795,7 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
                 getSpannable().removeSpan(chip);
                 QwertyKeyListener.markAsReplaced(editable, start, end, "");
                 editable.removeSpan(chip);
+                recycleChip(chip);
                 try {
                     if (!mNoChips) {
                         editable.setSpan(constructChipSpan(chip.getEntry(), false),
@@ -2459,12 +2925,19 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
         if (mNoChips) {
             return true;
         }
-        DrawableRecipientChip[] chips =
-                getSpannable().getSpans(start, end, DrawableRecipientChip.class);
-        if ((chips == null || chips.length == 0)) {
-            return false;
+        return hasChip(start, end);
+    }
+
+    /**
+     * Returns true if a chip overlaps the range, same as a getSpans query of the range would.
+     */
+    private boolean hasChip(int start, int end) {
+        if (start == end) {
+            return getChipIndex().findChip(start) != null;
         }
-        return true;
+        // A chip only touching the range does not count.
+        DrawableRecipientChip chip = getChipIndex().findChipBefore(end - 1);
+        return chip != null && getChipEnd(chip) > start;
     }
 
     private Spannable getSpannable() {
@@ -2493,9 +2966,16 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
                 RecipientEntry entry = createTokenizedEntry(text);
                 if (entry != null) {
                     QwertyKeyListener.markAsReplaced(editable, start, end, "");
-                    CharSequence chipText = createChip(entry, false);
-                    if (chipText != null && start > -1 && end > -1) {
-                        editable.replace(start, end, chipText);
+                    if (isRejectedDuplicate(entry)) {
+                        if (start > -1 && end > -1) {
+                            editable.delete(start, end);
+                        }
+                        mergeDuplicate(entry);
+                    } else {
+                        CharSequence chipText = createChip(entry, false);
+                        if (chipText != null && start > -1 && end > -1) {
+                            editable.replace(start, end, chipText);
+                        }
                     }
                 }
                 // Only dismiss the dropdown if it is related to the text we
@@ -2596,13 +3076,21 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
      * Use this method to generate text to add to the list of addresses.
      */
     private String createAddressText(RecipientEntry entry) {
+        return createAddressText(entry, true);
+    }
+
+    /**
+     * @param tokenizeAddress False if the destination is known to be a plain address, e.g. for
+     * resolved recipients.
+     */
+    private String createAddressText(RecipientEntry entry, boolean tokenizeAddress) {
         String display = entry.getDisplayName();
         String address = entry.getDestination();
         if (TextUtils.isEmpty(display) || TextUtils.equals(display, address)) {
             display = null;
         }
 
-        if (address != null) {
+        if (address != null && tokenizeAddress) {
             // Tokenize out the address in case the address already
             // contained the username as well.
             Rfc822Token[] tokenized = Rfc822Tokenizer.tokenize(address);
@@ -2621,80 +3109,203 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
 
     private DrawableRecipientChip constructChipSpan(RecipientEntry contact, boolean pressed)
             throws NullPointerException {
-        if (mChipBackground == null) {
+        return constructChipSpan(contact, pressed, false);
+    }
+
+    /**
+     * @param deferRasterization If true, chip bitmaps that are not cached are not rendered right
+     * away. The chip shows a placeholder of the measured size and is rasterized in the background
+     * once it is in or near the visible part of the view, see {@link #updateChipViewport()}.
+     */
+    private DrawableRecipientChip constructChipSpan(RecipientEntry contact, boolean pressed,
+            boolean deferRasterization) throws NullPointerException {
+        if (mRenderingContext == null) {
             throw new NullPointerException(
-                    "Unable to render any chips as setChipDimensions was not called.");
+                    "Unable to render any chips as no rendering context was set.");
         }
+        ChipPainter painter = getChipPainter();
+        ChipBitmapCache bitmapCache = mRenderingContext.getChipBitmapCache();
 
         TextPaint paint = getPaint();
         float defaultSize = paint.getTextSize();
         int defaultColor = paint.getColor();
 
-        Bitmap tmpBitmap;
-        if (pressed) {
-            tmpBitmap = createSelectedChip(contact, paint);
+        DrawableRecipientChip recipientChip;
+        if (mChipRenderingMode == CHIP_RENDERING_DIRECT) {
+            ChipLayout layout = painter.measure(contact, createChipDisplayText(contact),
+                    pressed, calculateAvailableWidth(), paint);
+            recipientChip = new DirectRecipientChip(painter, layout, contact);
         } else {
-            tmpBitmap = createUnselectedChip(contact, paint);
-        }
+            ChipBitmapCache.Key key = new ChipBitmapCache.Key(contact, pressed,
+                    (int) calculateAvailableWidth(), mChipFontSize,
+                    painter.getBitmapConfig(contact, pressed, mChipBitmapConfig));
+            ChipBitmap chipBitmap = bitmapCache.get(key);
+            Drawable result;
+            if (chipBitmap == null && deferRasterization) {
+                // Measure now so the text can be laid out, pixels come later.
+                ChipLayout layout = painter.measure(contact, createChipDisplayText(contact),
+                        pressed, calculateAvailableWidth(), paint);
+                result = new ChipDrawable(layout, key, painter.getChipBackground(contact));
+            } else {
+                boolean rendered = false;
+                if (chipBitmap == null) {
+                    chipBitmap = createChipBitmap(contact, pressed, paint, key.getConfig());
+                    rendered = true;
+                }
 
-        // Pass the full text, un-ellipsized, to the chip.
-        Drawable result = new BitmapDrawable(getResources(), tmpBitmap);
-        result.setBounds(0, 0, tmpBitmap.getWidth(), tmpBitmap.getHeight());
-        DrawableRecipientChip recipientChip = new VisibleRecipientChip(result, contact);
+                // Pass the full text, un-ellipsized, to the chip.
+                // The drawable takes its reference before the cache can evict the bitmap to the pool.
+                result = new ChipDrawable(chipBitmap);
+                if (rendered) {
+                    bitmapCache.put(key, chipBitmap);
+                }
+            }
+            recipientChip = new VisibleRecipientChip(result, contact);
+        }
         // Return text to the original size.
         paint.setTextSize(defaultSize);
         paint.setColor(defaultColor);
         return recipientChip;
     }
 
-    private Bitmap createSelectedChip(RecipientEntry contact, TextPaint paint) {
-        // Ellipsize the text so that it takes AT MOST the entire width of the
-        // auto-complete text entry area. Make sure to leave space for padding
-        // on the sides.
-        int height = (int) mChipHeight;
-        int deleteWidth = height;
-        float[] widths = new float[1];
-        paint.getTextWidths(" ", widths);
-        CharSequence ellipsizedText = ellipsizeText(createChipDisplayText(contact), paint,
-                calculateAvailableWidth() - deleteWidth - widths[0]);
-
-        // Make sure there is a minimum chip width so the user can ALWAYS
-        // tap a chip without difficulty.
-        int width = Math.max(deleteWidth * 2, (int) Math.floor(paint.measureText(ellipsizedText, 0,
-                ellipsizedText.length()))
-                + (mChipPadding * 2) + deleteWidth);
-
-        // Create the background of the chip.
-        Bitmap tmpBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-        Canvas canvas = new Canvas(tmpBitmap);
-        if (mChipBackgroundPressed != null) {
-            mChipBackgroundPressed.setBounds(0, 0, width, height);
-            mChipBackgroundPressed.draw(canvas);
-            paint.setColor(sSelectedTextColor);
-            // Vertically center the text in the chip.
-            canvas.drawText(ellipsizedText, 0, ellipsizedText.length(), mChipPadding,
-                    getTextYOffset((String) ellipsizedText, paint, height), paint);
-            // Make the delete a square.
-            Rect backgroundPadding = new Rect();
-            mChipBackgroundPressed.getPadding(backgroundPadding);
-            mChipDelete.setBounds(width - deleteWidth + backgroundPadding.left,
-                    0 + backgroundPadding.top,
-                    width - backgroundPadding.right,
-                    height - backgroundPadding.bottom);
-            mChipDelete.draw(canvas);
-        } else {
-            Log.w(TAG, "Unable to draw a background for the chips as it was never set");
+    private ChipBitmap createChipBitmap(RecipientEntry contact, boolean pressed, TextPaint paint,
+            Bitmap.Config config) {
+        ChipPainter painter = getChipPainter();
+        ChipLayout layout = painter.measure(contact, createChipDisplayText(contact), pressed,
+                calculateAvailableWidth(), paint);
+        // Create the background of the chip, reusing pixels of a removed chip if possible.
+        return painter.rasterize(layout, paint, mRenderingContext.getChipBitmapPool(), config);
+    }
+
+    private void scheduleChipViewportUpdate() {
+        mHandler.removeCallbacks(mUpdateChipViewport);
+        mHandler.post(mUpdateChipViewport);
+    }
+
+    /**
+     * Rasterize placeholder chips in or near the visible part of the view and give back the
+     * pixels of lazily rendered chips that are far off-screen, e.g. scrolled out of
+     * {@link #mScrollView}.
+     */
+    private void updateChipViewport() {
+        Layout layout = getLayout();
+        if (layout == null || !mAttachedToWindow || mChipRenderingMode != CHIP_RENDERING_BITMAP) {
+            return;
+        }
+        Rect visible = new Rect();
+        if (!getLocalVisibleRect(visible)) {
+            visible.set(0, getScrollY(), 0, getScrollY());
+        }
+        // Layout coordinates are relative to the text, not the view.
+        int top = visible.top - getTotalPaddingTop();
+        int bottom = visible.bottom - getTotalPaddingTop();
+        int viewport = Math.max(bottom - top, getHeight());
+        // Prefetch a viewport in each direction, keep pixels within three.
+        int rasterizeTop = top - viewport;
+        int rasterizeBottom = bottom + viewport;
+        int keepTop = top - VIEWPORT_KEEP_FACTOR * viewport;
+        int keepBottom = bottom + VIEWPORT_KEEP_FACTOR * viewport;
+
+        ChipBitmapCache bitmapCache = mRenderingContext.getChipBitmapCache();
+        Spannable spannable = getSpannable();
+        ArrayList<ChipRasterizer.Job> jobs = null;
+        boolean swapped = false;
+        // Chips near the viewport are found through the offset order, not by looking at all chips.
+        int rasterizeStart = layout.getLineStart(layout.getLineForVertical(Math.max(0,
+                rasterizeTop)));
+        int rasterizeEnd = layout.getLineEnd(layout.getLineForVertical(Math.max(0,
+                rasterizeBottom)));
+        for (int i = mChipIndex.ceilingIndex(rasterizeStart); i < mChipIndex.size(); i++) {
+            DrawableRecipientChip chip = mChipIndex.get(i);
+            if (spannable.getSpanStart(chip) >= rasterizeEnd) {
+                break;
+            }
+            ChipDrawable chipDrawable = getLazyChipDrawable(chip);
+            if (chipDrawable == null || !chipDrawable.needsRasterizing()) {
+                continue;
+            }
+            ChipBitmap cached = bitmapCache.get(chipDrawable.getKey());
+            if (cached != null) {
+                swapped |= chipDrawable.setChipBitmap(cached);
+            } else {
+                if (jobs == null) {
+                    jobs = new ArrayList<>();
+                }
+                jobs.add(new ChipRasterizer.Job(chipDrawable));
+            }
+            mLazyRasterizedChips.add(chip);
+        }
+        // Only chips rasterized here can hold pixels to give back.
+        for (int i = mLazyRasterizedChips.size() - 1; i >= 0; i--) {
+            DrawableRecipientChip chip = mLazyRasterizedChips.get(i);
+            int start = spannable.getSpanStart(chip);
+            if (start == -1) {
+                // Dropped from the text, its pixels were recycled with it.
+                mLazyRasterizedChips.remove(i);
+                continue;
+            }
+            int line = layout.getLineForOffset(start);
+            if (layout.getLineBottom(line) < keepTop || layout.getLineTop(line) > keepBottom) {
+                ChipDrawable chipDrawable = getLazyChipDrawable(chip);
+                if (chipDrawable.isRasterized()) {
+                    // Only this chip's reference goes, fields sharing the rendering context may
+                    // be showing the cached bitmap. The cache evicts it when it is least used.
+                    chipDrawable.discardChipBitmap();
+                    mLazyRasterizedChips.remove(i);
+                }
+            }
+        }
+        if (swapped) {
+            invalidate();
+        }
+        if (jobs != null) {
+            getChipRasterizer().rasterize(jobs, new TextPaint(getPaint()));
+        }
+    }
+
+    /**
+     * Returns the drawable of a chip created with deferred rasterization, or null for other chips.
+     */
+    private static ChipDrawable getLazyChipDrawable(DrawableRecipientChip chip) {
+        if (!(chip instanceof VisibleRecipientChip)) {
+            return null;
+        }
+        Drawable drawable = ((VisibleRecipientChip) chip).getDrawable();
+        if (!(drawable instanceof ChipDrawable) || ((ChipDrawable) drawable).getLayout() == null) {
+            return null;
+        }
+        return (ChipDrawable) drawable;
+    }
+
+    private ChipRasterizer getChipRasterizer() {
+        if (mChipRasterizer == null) {
+            mChipRasterizer = new ChipRasterizer(getChipPainter(),
+                    mRenderingContext.getChipBitmapPool(),
+                    new ChipRasterizer.Callback() {
+                        @Override
+                        public void onChipsRasterized(List<ChipRasterizer.Job> jobs) {
+                            ChipBitmapCache bitmapCache = mRenderingContext.getChipBitmapCache();
+                            for (ChipRasterizer.Job job : jobs) {
+                                bitmapCache.put(job.getKey(), job.getChipBitmap());
+                            }
+                            invalidate();
+                        }
+                    });
         }
-        return tmpBitmap;
+        return mChipRasterizer;
     }
 
-    private CharSequence ellipsizeText(CharSequence text, TextPaint paint, float maxWidth) {
-        paint.setTextSize(mChipFontSize);
-        if (maxWidth <= 0 && Log.isLoggable(TAG, Log.DEBUG)) {
-            Log.d(TAG, "Max width is negative: " + maxWidth);
+    /**
+     * Give the pixels of a chip that was dropped from the text back to the bitmap pool. The chip
+     * must not be shown anymore.
+     */
+    private void recycleChip(DrawableRecipientChip chip) {
+        if (chip instanceof VisibleRecipientChip) {
+            Drawable drawable = ((VisibleRecipientChip) chip).getDrawable();
+            if (drawable instanceof ChipDrawable) {
+                ((ChipDrawable) drawable).release();
+            }
         }
-        return TextUtils.ellipsize(text, paint, maxWidth,
-                TextUtils.TruncateAt.END);
     }
 
     /**
@@ -2720,93 +3331,11 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
      * view padding, and padding that will be added to the chip.
      */
     private float calculateAvailableWidth() {
-        return getWidth() - getPaddingLeft() - getPaddingRight() - (mChipPadding * 2);
-    }
-
-    private static float getTextYOffset(String text, TextPaint paint, int height) {
-        Rect bounds = new Rect();
-        paint.getTextBounds(text, 0, text.length(), bounds);
-        int textHeight = bounds.bottom - bounds.top;
-        return height - ((height - textHeight) / 2) - (int) paint.descent();
-    }
-
-    private Bitmap createUnselectedChip(RecipientEntry contact, TextPaint paint) {
-        // Ellipsize the text so that it takes AT MOST the entire width of the
-        // auto-complete text entry area. Make sure to leave space for padding
-        // on the sides.
-        int height = (int) mChipHeight;
-        int iconWidth = height;
-        float[] widths = new float[1];
-        paint.getTextWidths(" ", widths);
-        CharSequence ellipsizedText = ellipsizeText(createChipDisplayText(contact), paint,
-                calculateAvailableWidth() - iconWidth - widths[0]);
-        // Make sure there is a minimum chip width so the user can ALWAYS
-        // tap a chip without difficulty.
-        int width = Math.max(iconWidth * 2, (int) Math.floor(paint.measureText(ellipsizedText, 0,
-                ellipsizedText.length()))
-                + (mChipPadding * 2) + iconWidth);
-
-        // Create the background of the chip.
-        Bitmap tmpBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-        Canvas canvas = new Canvas(tmpBitmap);
-        Drawable background = getChipBackground(contact);
-        if (background != null) {
-            background.setBounds(0, 0, width, height);
-            background.draw(canvas);
-
-            // Don't draw photos for recipients that have been typed in OR generated on the fly.
-            long contactId = contact.getContactId();
-            boolean drawPhotos = (contactId != RecipientEntry.INVALID_CONTACT
-                    && (contactId != RecipientEntry.GENERATED_CONTACT &&
-                    !TextUtils.isEmpty(contact.getDisplayName())));
-            if (drawPhotos) {
-                byte[] photoBytes = contact.getPhotoBytes();
-                // There may not be a photo yet if anything but the first contact address
-                // was selected.
-                if (photoBytes == null && contact.getContactId() > 0) {
-                    // TODO: cache this in the recipient entry?
-                    // TODO: implement fetching of photo
-                    // getAdapter().fetchPhoto(contact, contact.getContactId());
-                    photoBytes = contact.getPhotoBytes();
-                }
-
-                Bitmap photo;
-                if (photoBytes != null) {
-                    photo = BitmapFactory.decodeByteArray(photoBytes, 0, photoBytes.length);
-                } else {
-                    // TODO: can the scaled down default photo be cached?
-                    photo = mDefaultContactPhoto;
-                }
-                // Draw the photo on the left side.
-                if (photo != null) {
-                    RectF src = new RectF(0, 0, photo.getWidth(), photo.getHeight());
-                    Rect backgroundPadding = new Rect();
-                    mChipBackground.getPadding(backgroundPadding);
-                    RectF dst = new RectF(width - iconWidth + backgroundPadding.left,
-                            0 + backgroundPadding.top,
-                            width - backgroundPadding.right,
-                            height - backgroundPadding.bottom);
-                    Matrix matrix = new Matrix();
-                    matrix.setRectToRect(src, dst, Matrix.ScaleToFit.FILL);
-                    canvas.drawBitmap(photo, matrix, paint);
-                }
-            }
-
-            paint.setColor(getContext().getResources().getColor(android.R.color.black));
-            // Vertically center the text in the chip.
-            canvas.drawText(ellipsizedText, 0, ellipsizedText.length(), mChipPadding,
-                    getTextYOffset((String) ellipsizedText, paint, height), paint);
-        } else {
-            Log.w(TAG, "Unable to draw a background for the chips as it was never set");
-        }
-        return tmpBitmap;
+        return calculateAvailableWidth(getWidth());
     }
 
-    /**
-     * Get the background drawable for a RecipientChip.
-     */
-    private Drawable getChipBackground(RecipientEntry contact) {
-        return contact.isValid() ? mChipBackground : mInvalidChipBackground;
+    private float calculateAvailableWidth(int width) {
+        return width - getPaddingLeft() - getPaddingRight() - (mChipPadding * 2);
     }
 
     private void sanitizeBetween() {
@@ -2815,12 +3344,13 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
             return;
         }
         // Find the last chip.
-        DrawableRecipientChip[] recipients = getSortedRecipients();
-        if (recipients != null && recipients.length > 0) {
-            DrawableRecipientChip last = recipients[recipients.length - 1];
+        RecipientChipIndex chipIndex = getChipIndex();
+        int count = chipIndex.size();
+        if (count > 0) {
+            DrawableRecipientChip last = chipIndex.get(count - 1);
             DrawableRecipientChip beforeLast = null;
-            if (recipients.length > 1) {
-                beforeLast = recipients[recipients.length - 2];
+            if (count > 1) {
+                beforeLast = chipIndex.get(count - 2);
             }
             int startLooking = 0;
             int end = getSpannable().getSpanStart(last);
@@ -2842,27 +3372,145 @@ public class RecipientEditTextView extends MultiAutoCompleteTextView implements
     }
 
     private DrawableRecipientChip[] getSortedRecipients() {
-        DrawableRecipientChip[] recipients = getSpannable()
-                .getSpans(0, getText().length(), DrawableRecipientChip.class);
-        ArrayList<DrawableRecipientChip> recipientsList = new ArrayList<>(
-                Arrays.asList(recipients));
-        final Spannable spannable = getSpannable();
-        Collections.sort(recipientsList, new Comparator<DrawableRecipientChip>() {
+        return getChipIndex().getChips();
+    }
 
-            @Override
-            public int compare(DrawableRecipientChip first, DrawableRecipientChip second) {
-                int firstStart = spannable.getSpanStart(first);
-                int secondStart = spannable.getSpanStart(second);
-                if (firstStart < secondStart) {
-                    return -1;
-                } else if (firstStart > secondStart) {
-                    return 1;
-                } else {
-                    return 0;
-                }
+    /**
+     * Returns the recipients of all chips in the order they appear in the text, including the
+     * ones hidden behind the more chip. Text that is not a chip yet is not included.
+     *
+     * The list is an immutable snapshot. It is built from the chips, not by parsing the text, and
+     * the same list is returned until the chips change.
+     */
+    public List<RecipientEntry> getRecipients() {
+        RecipientChipIndex chipIndex = getChipIndex();
+        int version = chipIndex.getVersion();
+        if (mRecipients == null || mRecipientsVersion != version
+                || mRecipientsHiddenVersion != mRemovedSpansVersion) {
+            int hiddenCount = mRemovedSpans != null ? mRemovedSpans.size() : 0;
+            ArrayList<RecipientEntry> recipients = new ArrayList<>(chipIndex.size() + hiddenCount);
+            for (DrawableRecipientChip chip : chipIndex.getChips()) {
+                recipients.add(chip.getEntry());
             }
-        });
-        return recipientsList.toArray(new DrawableRecipientChip[recipientsList.size()]);
+            // Hidden chips all follow the visible ones.
+            for (int i = 0; i < hiddenCount; i++) {
+                recipients.add(mRemovedSpans.get(i).getEntry());
+            }
+            mRecipients = Collections.unmodifiableList(recipients);
+            mRecipientsVersion = version;
+            mRecipientsHiddenVersion = mRemovedSpansVersion;
+        }
+        return mRecipients;
+    }
+
+    /**
+     * Returns the index of chips of the current text, attaching it if the text was replaced.
+     */
+    private RecipientChipIndex getChipIndex() {
+        Spannable spannable = getSpannable();
+        if (mChipIndex.getText() != spannable) {
+            mChipIndex.attach(spannable);
+        }
+        return mChipIndex;
+    }
+
+    /**
+     * Selects how chips created from now on are rendered, either {@link #CHIP_RENDERING_BITMAP} or
+     * {@link #CHIP_RENDERING_DIRECT}.
+     */
+    public void setChipRenderingMode(int mode) {
+        mChipRenderingMode = mode;
+    }
+
+    /**
+     * Selects what happens to recipients added with a destination that is already present, either
+     * {@link #DUPLICATES_ALLOW}, {@link #DUPLICATES_REJECT} or {@link #DUPLICATES_MERGE}.
+     * Recipients already in the field are kept.
+     */
+    public void setDuplicatePolicy(int policy) {
+        mDuplicatePolicy = policy;
+    }
+
+    public int getDuplicatePolicy() {
+        return mDuplicatePolicy;
+    }
+
+    /**
+     * Returns true if a chip, shown or hidden behind the more chip, has the destination. Addresses
+     * are compared case insensitively, without their display names.
+     */
+    public boolean isRecipientPresent(String destination) {
+        return getChipIndex().containsDestination(destination);
+    }
+
+    /**
+     * Returns true if the duplicate policy does not let the recipient be added.
+     */
+    private boolean isRejectedDuplicate(RecipientEntry entry) {
+        return mDuplicatePolicy != DUPLICATES_ALLOW && !mNoChips
+                && isRecipientPresent(entry.getDestination());
+    }
+
+    /**
+     * Let the chip with the destination of a rejected duplicate take its contact details, if the
+     * policy says so and they are better.
+     */
+    private void mergeDuplicate(RecipientEntry entry) {
+        if (mDuplicatePolicy != DUPLICATES_MERGE) {
+            return;
+        }
+        DrawableRecipientChip existing = getChipIndex().findChipByDestination(
+                entry.getDestination());
+        if (existing != null && RecipientAlternatesAdapter.getBetterRecipient(
+                existing.getEntry(), entry) == entry && existing.getEntry() != entry) {
+            replaceChip(existing, entry);
+        }
+    }
+
+    public int getChipRenderingMode() {
+        return mChipRenderingMode;
+    }
+
+    /**
+     * Returns the pool of bitmaps of removed chips, e.g. to inspect its hit and miss counters.
+     */
+    public ChipBitmapPool getChipBitmapPool() {
+        return mRenderingContext.getChipBitmapPool();
+    }
+
+    /**
+     * Sets the config chip bitmaps are rendered with. RGB_565 halves the memory of every chip,
+     * translucent parts of the chip background are drawn over white then. Pass null to use
+     * RGB_565 only for chips with an opaque background. Affects chips rendered from now on.
+     */
+    public void setChipBitmapConfig(Bitmap.Config config) {
+        mChipBitmapConfig = config;
+    }
+
+    public Bitmap.Config getChipBitmapConfig() {
+        return mChipBitmapConfig;
+    }
+
+    /**
+     * Returns the cache of measured chip labels.
+     */
+    public ChipTextMeasureCache getChipTextMeasureCache() {
+        return mRenderingContext.getChipTextMeasureCache();
+    }
+
+    /**
+     * Returns the cache of rendered chip bitmaps, e.g. to inspect its hit, miss and eviction counters.
+     */
+    public ChipBitmapCache getChipBitmapCache() {
+        return mRenderingContext.getChipBitmapCache();
+    }
+
+    /**
+     * Sets the byte budget of the rendered chip bitmap cache. Already cached bitmaps are dropped.
+     * The cache belongs to the rendering context, so fields sharing it are affected as well.
+     */
+    public void setChipBitmapCacheSize(int maxBytes) {
+        mRenderingContext.setChipBitmapCacheSize(maxBytes);
     }
 
     /**
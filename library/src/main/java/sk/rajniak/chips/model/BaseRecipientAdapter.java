@@ -2,7 +2,9 @@ package sk.rajniak.chips.model;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.text.util.Rfc822Token;
 import android.util.Log;
@@ -19,8 +21,11 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import sk.rajniak.chips.R;
+import sk.rajniak.chips.render.PhotoCache;
 
 public abstract class BaseRecipientAdapter extends BaseAdapter implements Filterable {
     private static final String TAG = BaseRecipientAdapter.class.getSimpleName();
@@ -36,16 +41,61 @@ public abstract class BaseRecipientAdapter extends BaseAdapter implements Filter
 
     private final LayoutInflater mInflater;
 
+    private final int mPreferredMaxResultCount;
+
     private List<RecipientEntry> mEntries;
 
     private EntriesUpdatedObserver mEntriesUpdatedObserver;
 
+    private PhotoCache mPhotoCache = PhotoCache.getInstance();
+
+    private DefaultFilter mFilter;
+
+    /**
+     * Counts filter requests, queries started for an older request are stale.
+     */
+    private final AtomicInteger mFilterGeneration = new AtomicInteger();
+
+    /**
+     * Constraint requested last on the UI thread along with its generation, reused by every
+     * request so typing does not allocate.
+     */
+    private final FilterRequest mFilterRequest = new FilterRequest();
+
+    private volatile long mFilterDelay;
+
+    private volatile boolean mIncrementalFiltering;
+
+    /**
+     * Complete results of the last query, refined in memory while the constraint grows.
+     */
+    private volatile LastResults mLastResults;
+
+    private volatile RecipientResultCache mResultCache;
+
+    /**
+     * Counts invalidations of the results, guarded by {@link #mResultsLock}. Results of queries
+     * started before an invalidation are not kept.
+     */
+    private int mResultsGeneration;
+
+    private final Object mResultsLock = new Object();
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Size of the photo in a dropdown row, photos are decoded down to it.
+     */
+    private final int mPhotoSize;
+
     public BaseRecipientAdapter(Context context) {
         this(context, DEFAULT_PREFERRED_MAX_RESULT_COUNT);
     }
 
     public BaseRecipientAdapter(Context context, int preferredMaxResultCount) {
         mInflater = LayoutInflater.from(context);
+        mPreferredMaxResultCount = preferredMaxResultCount;
+        mPhotoSize = context.getResources().getDimensionPixelSize(R.dimen.chip_dropdown_photo_size);
     }
 
     @Override
@@ -119,10 +169,8 @@ public abstract class BaseRecipientAdapter extends BaseAdapter implements Filter
             displayNameView.setVisibility(View.VISIBLE);
             if (imageView != null) {
                 imageView.setVisibility(View.VISIBLE);
-                final byte[] photoBytes = entry.getPhotoBytes();
-                if (photoBytes != null) {
-                    final Bitmap photo = BitmapFactory.decodeByteArray(photoBytes, 0,
-                            photoBytes.length);
+                final Bitmap photo = mPhotoCache.getPhoto(entry, mPhotoSize);
+                if (photo != null) {
                     imageView.setImageBitmap(photo);
                 } else {
                     imageView.setImageResource(getDefaultPhotoResource());
@@ -139,7 +187,164 @@ public abstract class BaseRecipientAdapter extends BaseAdapter implements Filter
 
     @Override
     public Filter getFilter() {
-        return new DefaultFilter();
+        if (mFilter == null) {
+            mFilter = new DefaultFilter();
+        }
+        return mFilter;
+    }
+
+    /**
+     * Returns the preferred number of results of a query.
+     */
+    protected int getPreferredMaxResultCount() {
+        return mPreferredMaxResultCount;
+    }
+
+    /**
+     * Sets how long a query waits for the constraint to settle before it runs. Constraints typed
+     * in the meantime replace it, so fast typing runs a single query. By default queries run
+     * right away.
+     */
+    public void setFilterDelay(long delayMillis) {
+        mFilterDelay = delayMillis;
+    }
+
+    /**
+     * Marks queries started so far as stale: they are asked to stop through their
+     * {@link CancellationToken} and their results are not shown. Called on the UI thread when
+     * the constraint changes.
+     */
+    public void cancelFiltering() {
+        mFilterRequest.clear(mFilterGeneration.incrementAndGet());
+    }
+
+    /**
+     * Same as {@link #cancelFiltering()}, and remembers the constraint about to be filtered. Call
+     * it on the UI thread right before the constraint is passed to the filter, so the generation
+     * of the query is taken when it is requested, not when the filter thread gets to it: the
+     * query is cancelled by a later request even if it starts afterwards. Constraints passed to
+     * the filter without a request are cancelled only by requests made after the query started.
+     */
+    public void requestFiltering(CharSequence constraint) {
+        requestFiltering(constraint, 0, constraint.length());
+    }
+
+    /**
+     * Same as {@link #requestFiltering(CharSequence)} for the constraint between start and end
+     * of the text. The characters are copied, so the text does not have to be cut out of the
+     * text of the field first.
+     */
+    public void requestFiltering(CharSequence text, int start, int end) {
+        mFilterRequest.set(text, start, end, mFilterGeneration.incrementAndGet());
+    }
+
+    /**
+     * Sets whether results of a constraint are narrowed down in memory when the constraint is
+     * extended, instead of querying the source again. Disabled by default, enable it only if
+     * {@link #matchesConstraint(RecipientEntry, String)} tells the matches of the source.
+     */
+    public void setIncrementalFilteringEnabled(boolean enabled) {
+        mIncrementalFiltering = enabled;
+        mLastResults = null;
+    }
+
+    /**
+     * Forget the results kept for refinement and the cached results, e.g. when recipients of the
+     * source changed.
+     */
+    public void invalidateFilterResults() {
+        synchronized (mResultsLock) {
+            mResultsGeneration++;
+            mLastResults = null;
+            final RecipientResultCache resultCache = mResultCache;
+            if (resultCache != null) {
+                resultCache.evictAll();
+            }
+        }
+    }
+
+    /**
+     * Sets the cache answering constraints queried before, or null to always query the source,
+     * which is the default.
+     */
+    public void setResultCache(RecipientResultCache resultCache) {
+        mResultCache = resultCache;
+    }
+
+    public RecipientResultCache getResultCache() {
+        return mResultCache;
+    }
+
+    /**
+     * Show results found so far while a query is still running, e.g. those of the faster of
+     * several sources. Call it from {@link #getMatchingRecipients(CharSequence,
+     * CancellationToken)}, the results are dropped if the query is cancelled before they reach
+     * the UI thread. Results returned by the query replace them.
+     */
+    protected void publishPartialResults(final List<RecipientEntry> entries,
+            final CancellationToken cancellationToken) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!cancellationToken.isCancelled()) {
+                    updateEntries(entries);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns true if the entry is a match of the constraint, used to refine results of a shorter
+     * constraint in memory. By default the display name or the destination has to contain the
+     * constraint, ignoring case. The constraint is in lower case.
+     */
+    protected boolean matchesConstraint(RecipientEntry entry, String constraint) {
+        return containsIgnoreCase(entry.getDisplayName(), constraint)
+                || containsIgnoreCase(entry.getDestination(), constraint);
+    }
+
+    /**
+     * Returns true if the results are all matches of the constraint, so they can be refined when
+     * the constraint is extended. By default results are complete when there are fewer of them
+     * than the preferred maximum number of results.
+     */
+    protected boolean isCompleteResult(CharSequence constraint, List<RecipientEntry> entries) {
+        return entries.size() < mPreferredMaxResultCount;
+    }
+
+    /**
+     * Returns true if the results can be put in the result cache. By default all results are
+     * cached, override it to keep out results that are known to be partial, e.g. when a source
+     * did not answer in time.
+     */
+    protected boolean isCacheableResult(CharSequence constraint, List<RecipientEntry> entries) {
+        return true;
+    }
+
+    private static boolean containsIgnoreCase(String text, String lowerCaseConstraint) {
+        return text != null && text.toLowerCase(Locale.getDefault()).contains(lowerCaseConstraint);
+    }
+
+    /**
+     * Returns matches of the constraint picked from the last results, or null if they can't be
+     * used for it.
+     */
+    private List<RecipientEntry> refineLastResults(String constraint) {
+        final LastResults lastResults = mLastResults;
+        if (!mIncrementalFiltering || lastResults == null
+                || constraint.length() <= lastResults.mConstraint.length()
+                || !constraint.regionMatches(true, 0, lastResults.mConstraint, 0,
+                        lastResults.mConstraint.length())) {
+            return null;
+        }
+        final String lowerCaseConstraint = constraint.toLowerCase(Locale.getDefault());
+        final List<RecipientEntry> refined = new ArrayList<>();
+        for (RecipientEntry entry : lastResults.mEntries) {
+            if (matchesConstraint(entry, lowerCaseConstraint)) {
+                refined.add(entry);
+            }
+        }
+        return refined;
     }
 
     public abstract List<RecipientEntry> getAlternativeRecipients(String displayName);
@@ -148,10 +353,26 @@ public abstract class BaseRecipientAdapter extends BaseAdapter implements Filter
 
     protected abstract HashMap<String, List<RecipientEntry>> getMatchingRecipients(CharSequence constraint);
 
+    /**
+     * Same as {@link #getMatchingRecipients(CharSequence)}, override it to stop slow queries
+     * once the token is cancelled. Partial or null results of a cancelled query are dropped.
+     */
+    protected HashMap<String, List<RecipientEntry>> getMatchingRecipients(CharSequence constraint,
+            CancellationToken cancellationToken) {
+        return getMatchingRecipients(constraint);
+    }
+
     public interface EntriesUpdatedObserver {
         public void onChanged(List<RecipientEntry> entries);
     }
 
+    /**
+     * Sets the cache photos are decoded into. By default the cache shared with chips is used.
+     */
+    public void setPhotoCache(PhotoCache photoCache) {
+        mPhotoCache = photoCache;
+    }
+
     public void registerUpdateObserver(EntriesUpdatedObserver observer) {
         mEntriesUpdatedObserver = observer;
     }
@@ -239,17 +460,106 @@ public abstract class BaseRecipientAdapter extends BaseAdapter implements Filter
                 return results;
             }
 
-            results.values = getMatchingRecipients(constraint);
-            results.count = 1;
+            final String key = constraint.toString();
+            final CancellationToken token = newCancellationToken(key);
+            final int resultsGeneration = getResultsGeneration();
+            final RecipientResultCache resultCache = mResultCache;
+            final List<RecipientEntry> cached = resultCache != null ? resultCache.get(key) : null;
+            if (cached != null) {
+                keepResults(resultsGeneration, key, cached, false);
+                final HashMap<String, List<RecipientEntry>> matches = new HashMap<>();
+                matches.put(key, cached);
+                results.values = new MatchingResults(token, matches);
+                results.count = 1;
+                return results;
+            }
+            final List<RecipientEntry> refined = refineLastResults(key);
+            if (refined != null) {
+                // Matches of the longer constraint are among the complete results of the shorter.
+                keepResults(resultsGeneration, key, refined, true);
+                final HashMap<String, List<RecipientEntry>> matches = new HashMap<>();
+                matches.put(key, refined);
+                results.values = new MatchingResults(token, matches);
+                results.count = 1;
+                return results;
+            }
+
+            final long delay = mFilterDelay;
+            if (delay > 0) {
+                // Constraints requested meanwhile are queued by the filter, newest one only.
+                SystemClock.sleep(delay);
+            }
+            if (token.isCancelled()) {
+                return results;
+            }
+
+            final HashMap<String, List<RecipientEntry>> matches =
+                    getMatchingRecipients(constraint, token);
+            if (matches != null && !token.isCancelled()) {
+                results.values = new MatchingResults(token, matches);
+                results.count = 1;
+                final List<RecipientEntry> entries = matches.get(key);
+                if (entries != null) {
+                    keepResults(resultsGeneration, key, entries, true);
+                } else {
+                    mLastResults = null;
+                }
+            }
 
             return results;
         }
 
+        private CancellationToken newCancellationToken(String constraint) {
+            final FilterRequest request = mFilterRequest;
+            synchronized (request) {
+                if (request.matches(constraint)) {
+                    // Cancelled by anything requested after it, even before the query started.
+                    return new CancellationToken(mFilterGeneration, request.mGeneration);
+                }
+            }
+            // Passed to the filter without a request, e.g. by the app. The query is current
+            // until the next request.
+            return new CancellationToken(mFilterGeneration);
+        }
+
+        private int getResultsGeneration() {
+            synchronized (mResultsLock) {
+                return mResultsGeneration;
+            }
+        }
+
+        /**
+         * Keep results for refinement and, if asked to, in the result cache. Results of a query
+         * that started before the last invalidation are dropped, they may come from the old
+         * recipients.
+         */
+        private void keepResults(int resultsGeneration, String constraint,
+                List<RecipientEntry> entries, boolean cache) {
+            final boolean complete = isCompleteResult(constraint, entries);
+            final boolean cacheable = cache && isCacheableResult(constraint, entries);
+            synchronized (mResultsLock) {
+                if (resultsGeneration != mResultsGeneration) {
+                    return;
+                }
+                final RecipientResultCache resultCache = mResultCache;
+                if (cacheable && resultCache != null) {
+                    resultCache.put(constraint, new ArrayList<>(entries));
+                }
+                mLastResults = mIncrementalFiltering && complete
+                        ? new LastResults(constraint, new ArrayList<>(entries)) : null;
+            }
+        }
+
         @Override
         protected void publishResults(final CharSequence constraint, FilterResults results) {
             if (results.values != null) {
+                final MatchingResults matchingResults = (MatchingResults) results.values;
+                if (matchingResults.mToken.isCancelled()) {
+                    // The constraint changed while the results were on the way.
+                    return;
+                }
                 HashMap<String, List<RecipientEntry>> defaultFilterResult
-                        = (HashMap<String, List<RecipientEntry>>) results.values;
+                        = matchingResults.mMatches;
 
                 List<RecipientEntry> resultList = new ArrayList<>();
                 for (RecipientEntry entry : defaultFilterResult.get(constraint.toString())) {
@@ -272,4 +582,63 @@ public abstract class BaseRecipientAdapter extends BaseAdapter implements Filter
             }
         }
     }
+
+    /**
+     * Complete results of a constraint.
+     */
+    private static final class LastResults {
+        final String mConstraint;
+
+        final List<RecipientEntry> mEntries;
+
+        LastResults(String constraint, List<RecipientEntry> entries) {
+            mConstraint = constraint;
+            mEntries = entries;
+        }
+    }
+
+    /**
+     * Constraint passed to the filter on the UI thread, none if filtering was only cancelled.
+     * Set on the UI thread and read on the filter thread while holding its lock.
+     */
+    private static final class FilterRequest {
+        final StringBuilder mConstraint = new StringBuilder();
+
+        boolean mHasConstraint;
+
+        int mGeneration;
+
+        synchronized void set(CharSequence text, int start, int end, int generation) {
+            mConstraint.setLength(0);
+            for (int i = start; i < end; i++) {
+                mConstraint.append(text.charAt(i));
+            }
+            mHasConstraint = true;
+            mGeneration = generation;
+        }
+
+        synchronized void clear(int generation) {
+            mConstraint.setLength(0);
+            mHasConstraint = false;
+            mGeneration = generation;
+        }
+
+        boolean matches(String constraint) {
+            return mHasConstraint && constraint.contentEquals(mConstraint);
+        }
+    }
+
+    /**
+     * Matches of a query along with the token telling whether they are still wanted.
+     */
+    private static final class MatchingResults {
+        final CancellationToken mToken;
+
+        final HashMap<String, List<RecipientEntry>> mMatches;
+
+        MatchingResults(CancellationToken token, HashMap<String, List<RecipientEntry>> matches) {
+            mToken = token;
+            mMatches = matches;
+        }
+    }
 }
@@ -0,0 +1,34 @@
+package sk.rajniak.chips.model;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tells a recipient query that it was superseded by a newer one. Queries should check it between
+ * steps, e.g. per directory or per batch of rows, and stop early once it is cancelled; their
+ * results are dropped anyway.
+ */
+public class CancellationToken {
+
+    private final AtomicInteger mGeneration;
+
+    private final int mValue;
+
+    /**
+     * @param generation Counter of queries, the token is cancelled once it moves on.
+     */
+    CancellationToken(AtomicInteger generation) {
+        this(generation, generation.get());
+    }
+
+    /**
+     * @param value Generation the query was requested in.
+     */
+    CancellationToken(AtomicInteger generation, int value) {
+        mGeneration = generation;
+        mValue = value;
+    }
+
+    public boolean isCancelled() {
+        return mGeneration.get() != mValue;
+    }
+}
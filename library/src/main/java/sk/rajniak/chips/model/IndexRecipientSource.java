@@ -0,0 +1,56 @@
+package sk.rajniak.chips.model;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Source of recipients held in memory, searched through a {@link RecipientPrefixIndex}.
+ */
+public class IndexRecipientSource implements RecipientSource {
+
+    private volatile RecipientPrefixIndex mIndex;
+
+    /**
+     * Adapters the source was added to, their cached results go stale with the index.
+     */
+    private final CopyOnWriteArrayList<BaseRecipientAdapter> mAdapters =
+            new CopyOnWriteArrayList<>();
+
+    public IndexRecipientSource(RecipientPrefixIndex index) {
+        mIndex = index;
+    }
+
+    /**
+     * Replace the recipients with an index built beforehand, results cached by the adapters of
+     * the source are dropped.
+     */
+    public void setIndex(RecipientPrefixIndex index) {
+        mIndex = index;
+        for (BaseRecipientAdapter adapter : mAdapters) {
+            adapter.invalidateFilterResults();
+        }
+    }
+
+    public RecipientPrefixIndex getIndex() {
+        return mIndex;
+    }
+
+    void addAdapter(BaseRecipientAdapter adapter) {
+        mAdapters.addIfAbsent(adapter);
+    }
+
+    void removeAdapter(BaseRecipientAdapter adapter) {
+        mAdapters.remove(adapter);
+    }
+
+    @Override
+    public List<RecipientEntry> getMatchingRecipients(CharSequence constraint, int maxResults,
+            CancellationToken cancellationToken) {
+        return mIndex.search(constraint, maxResults);
+    }
+
+    @Override
+    public List<RecipientEntry> getAlternativeRecipients(String displayName) {
+        return mIndex.getByDisplayName(displayName);
+    }
+}
@@ -0,0 +1,89 @@
+package sk.rajniak.chips.model;
+
+import android.content.Context;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Adapter matching recipients held in memory, e.g. an address book synced by the app.
+ *
+ * Recipients are searched through a {@link RecipientPrefixIndex}: a query matches a recipient
+ * when each of its words starts a word of the display name or the address, and the best ranked
+ * matches are found without scanning all recipients. Alternatives of a recipient are the
+ * recipients with the same display name.
+ */
+public class IndexedRecipientAdapter extends BaseRecipientAdapter {
+
+    private volatile RecipientPrefixIndex mIndex =
+            new RecipientPrefixIndex(Collections.<RecipientEntry>emptyList());
+
+    public IndexedRecipientAdapter(Context context) {
+        super(context);
+        // The index decides matches the same way as matchesConstraint.
+        setIncrementalFilteringEnabled(true);
+    }
+
+    public IndexedRecipientAdapter(Context context, int preferredMaxResultCount) {
+        super(context, preferredMaxResultCount);
+        // The index decides matches the same way as matchesConstraint.
+        setIncrementalFilteringEnabled(true);
+    }
+
+    /**
+     * Replace the recipients, building the index takes a while for large lists, so call it off
+     * the UI thread.
+     *
+     * @param entries Recipients ordered by their rank, best matches first.
+     */
+    public void setRecipients(List<RecipientEntry> entries) {
+        setIndex(new RecipientPrefixIndex(entries));
+    }
+
+    /**
+     * Replace the recipients with an index built beforehand.
+     */
+    public void setIndex(RecipientPrefixIndex index) {
+        mIndex = index;
+        invalidateFilterResults();
+    }
+
+    public RecipientPrefixIndex getIndex() {
+        return mIndex;
+    }
+
+    @Override
+    public List<RecipientEntry> getAlternativeRecipients(String displayName) {
+        return new ArrayList<>(mIndex.getByDisplayName(displayName));
+    }
+
+    @Override
+    public HashMap<String, List<RecipientEntry>> getAlternativeRecipients(
+            HashSet<String> displayNames) {
+        final RecipientPrefixIndex index = mIndex;
+        final HashMap<String, List<RecipientEntry>> alternatives = new HashMap<>();
+        for (String displayName : displayNames) {
+            final List<RecipientEntry> entries = index.getByDisplayName(displayName);
+            if (!entries.isEmpty()) {
+                alternatives.put(displayName, new ArrayList<>(entries));
+            }
+        }
+        return alternatives;
+    }
+
+    @Override
+    protected HashMap<String, List<RecipientEntry>> getMatchingRecipients(CharSequence constraint) {
+        final HashMap<String, List<RecipientEntry>> matches = new HashMap<>();
+        matches.put(constraint.toString(),
+                mIndex.search(constraint, getPreferredMaxResultCount()));
+        return matches;
+    }
+
+    @Override
+    protected boolean matchesConstraint(RecipientEntry entry, String constraint) {
+        return RecipientPrefixIndex.matches(entry, constraint);
+    }
+}
@@ -0,0 +1,282 @@
+package sk.rajniak.chips.model;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Adapter querying several {@link RecipientSource}s at once.
+ *
+ * Every source runs on its own worker thread with its own timeout. Queries of a source run one
+ * after another, so a source that ignores cancellation holds up only itself. Whenever a source finishes, the
+ * results found so far are merged and shown, so the fastest source decides when the first
+ * results appear and slower ones add to them. Results are ordered by the order the sources were
+ * added in, a destination found by several sources is shown once.
+ */
+public class MultiSourceRecipientAdapter extends BaseRecipientAdapter {
+    private static final String TAG = MultiSourceRecipientAdapter.class.getSimpleName();
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * Timeout of sources added without one.
+     */
+    private static final long DEFAULT_TIMEOUT_MS = 2000;
+
+    /**
+     * Longest wait for a source before looking at the cancellation token again.
+     */
+    private static final long CANCELLATION_CHECK_MS = 50;
+
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "RecipientSource");
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    private final CopyOnWriteArrayList<SourceEntry> mSources = new CopyOnWriteArrayList<>();
+
+    /**
+     * Constraint of the last query some source did not answer in time, its results are not
+     * complete.
+     */
+    private volatile String mTimedOutConstraint;
+
+    public MultiSourceRecipientAdapter(Context context) {
+        super(context);
+    }
+
+    public MultiSourceRecipientAdapter(Context context, int preferredMaxResultCount) {
+        super(context, preferredMaxResultCount);
+    }
+
+    public void addSource(RecipientSource source) {
+        addSource(source, DEFAULT_TIMEOUT_MS);
+    }
+
+    /**
+     * Add a source, its results come after the results of sources added before.
+     *
+     * @param timeoutMillis How long a query waits for the source, later results are dropped.
+     */
+    public void addSource(RecipientSource source, long timeoutMillis) {
+        mSources.add(new SourceEntry(source, timeoutMillis));
+        if (source instanceof IndexRecipientSource) {
+            ((IndexRecipientSource) source).addAdapter(this);
+        }
+        invalidateFilterResults();
+    }
+
+    public void removeSource(RecipientSource source) {
+        for (SourceEntry entry : mSources) {
+            if (entry.mSource == source) {
+                mSources.remove(entry);
+            }
+        }
+        if (source instanceof IndexRecipientSource) {
+            ((IndexRecipientSource) source).removeAdapter(this);
+        }
+        invalidateFilterResults();
+    }
+
+    @Override
+    public List<RecipientEntry> getAlternativeRecipients(String displayName) {
+        final List<List<RecipientEntry>> results = new ArrayList<>();
+        for (SourceEntry entry : mSources) {
+            try {
+                results.add(entry.mSource.getAlternativeRecipients(displayName));
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Source failed to look up alternatives", e);
+            }
+        }
+        return merge(results, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public HashMap<String, List<RecipientEntry>> getAlternativeRecipients(
+            HashSet<String> displayNames) {
+        final HashMap<String, List<RecipientEntry>> alternatives = new HashMap<>();
+        for (String displayName : displayNames) {
+            final List<RecipientEntry> entries = getAlternativeRecipients(displayName);
+            if (!entries.isEmpty()) {
+                alternatives.put(displayName, entries);
+            }
+        }
+        return alternatives;
+    }
+
+    @Override
+    protected HashMap<String, List<RecipientEntry>> getMatchingRecipients(CharSequence constraint) {
+        return getMatchingRecipients(constraint, new CancellationToken(new AtomicInteger()));
+    }
+
+    @Override
+    protected HashMap<String, List<RecipientEntry>> getMatchingRecipients(
+            final CharSequence constraint, final CancellationToken cancellationToken) {
+        final List<SourceEntry> sources = new ArrayList<>(mSources);
+        final int count = sources.size();
+        final int maxResults = getPreferredMaxResultCount();
+        final BlockingQueue<Future<List<RecipientEntry>>> completed = new LinkedBlockingQueue<>();
+        final List<Future<List<RecipientEntry>>> futures = new ArrayList<>(count);
+        final List<List<RecipientEntry>> results = new ArrayList<>(count);
+        final long[] deadlines = new long[count];
+        final boolean[] finished = new boolean[count];
+        final long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            final SourceEntry sourceEntry = sources.get(i);
+            results.add(null);
+            deadlines[i] = start + TimeUnit.MILLISECONDS.toNanos(sourceEntry.mTimeout);
+            futures.add(new ExecutorCompletionService<>(sourceEntry.mExecutor, completed).submit(
+                    new Callable<List<RecipientEntry>>() {
+                        @Override
+                        public List<RecipientEntry> call() {
+                            if (cancellationToken.isCancelled()) {
+                                // Waited behind a query of the source for too long.
+                                return null;
+                            }
+                            return sourceEntry.mSource.getMatchingRecipients(constraint,
+                                    maxResults, cancellationToken);
+                        }
+                    }));
+        }
+
+        boolean timedOut = false;
+        int pending = count;
+        try {
+            while (pending > 0 && !cancellationToken.isCancelled()) {
+                // Wait until the earliest timeout of the sources still running, in slices, so a
+                // stale query does not hold up the filter thread until the timeout.
+                long deadline = Long.MAX_VALUE;
+                for (int i = 0; i < count; i++) {
+                    if (!finished[i]) {
+                        deadline = Math.min(deadline, deadlines[i]);
+                    }
+                }
+                long now = System.nanoTime();
+                final Future<List<RecipientEntry>> done = deadline > now
+                        ? completed.poll(Math.min(deadline - now,
+                                TimeUnit.MILLISECONDS.toNanos(CANCELLATION_CHECK_MS)),
+                                TimeUnit.NANOSECONDS)
+                        : completed.poll();
+                if (done == null) {
+                    // Give up on sources past their timeout, their results are dropped.
+                    now = System.nanoTime();
+                    for (int i = 0; i < count; i++) {
+                        if (!finished[i] && deadlines[i] <= now) {
+                            finished[i] = true;
+                            pending--;
+                            futures.get(i).cancel(true);
+                            timedOut = true;
+                        }
+                    }
+                    continue;
+                }
+                final int index = futures.indexOf(done);
+                if (finished[index]) {
+                    // Cancelled after its timeout.
+                    continue;
+                }
+                finished[index] = true;
+                pending--;
+                try {
+                    results.set(index, done.get());
+                } catch (ExecutionException e) {
+                    Log.e(TAG, "Source failed to match " + constraint, e.getCause());
+                    continue;
+                }
+                if (pending > 0) {
+                    publishPartialResults(merge(results, maxResults), cancellationToken);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (Future<List<RecipientEntry>> future : futures) {
+                future.cancel(true);
+            }
+        }
+        if (cancellationToken.isCancelled()) {
+            return null;
+        }
+
+        mTimedOutConstraint = timedOut ? constraint.toString() : null;
+        final HashMap<String, List<RecipientEntry>> matches = new HashMap<>();
+        matches.put(constraint.toString(), merge(results, maxResults));
+        return matches;
+    }
+
+    @Override
+    protected boolean isCompleteResult(CharSequence constraint, List<RecipientEntry> entries) {
+        return !constraint.toString().equals(mTimedOutConstraint)
+                && super.isCompleteResult(constraint, entries);
+    }
+
+    @Override
+    protected boolean isCacheableResult(CharSequence constraint, List<RecipientEntry> entries) {
+        // Matches of the late source show up when the constraint is queried again.
+        return !constraint.toString().equals(mTimedOutConstraint);
+    }
+
+    /**
+     * Concatenate results of the sources in their order, skipping destinations already present.
+     */
+    private static List<RecipientEntry> merge(List<List<RecipientEntry>> results,
+            int maxResults) {
+        final List<RecipientEntry> merged = new ArrayList<>();
+        final HashSet<String> destinations = new HashSet<>();
+        for (List<RecipientEntry> entries : results) {
+            if (entries == null) {
+                continue;
+            }
+            for (RecipientEntry entry : entries) {
+                if (merged.size() >= maxResults) {
+                    return merged;
+                }
+                final String destination = entry.getDestination();
+                if (destination == null
+                        || destinations.add(destination.toLowerCase(Locale.getDefault()))) {
+                    merged.add(entry);
+                }
+            }
+        }
+        return merged;
+    }
+
+    private static final class SourceEntry {
+        final RecipientSource mSource;
+
+        final long mTimeout;
+
+        /**
+         * Runs queries of the source one at a time, its thread goes away when idle.
+         */
+        final ThreadPoolExecutor mExecutor;
+
+        SourceEntry(RecipientSource source, long timeout) {
+            mSource = source;
+            mTimeout = timeout;
+            mExecutor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), THREAD_FACTORY);
+            mExecutor.allowCoreThreadTimeOut(true);
+        }
+    }
+}
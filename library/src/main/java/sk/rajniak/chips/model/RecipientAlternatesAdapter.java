@@ -2,7 +2,6 @@ package sk.rajniak.chips.model;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.text.TextUtils;
 import android.text.util.Rfc822Token;
 import android.text.util.Rfc822Tokenizer;
@@ -22,6 +21,7 @@ import java.util.Map;
 import java.util.Set;
 
 import sk.rajniak.chips.R;
+import sk.rajniak.chips.render.PhotoCache;
 
 /**
  * If recipient entry is not generated or fake, then when user clicks on the chip, we give him alternatives.
@@ -32,6 +32,9 @@ public class RecipientAlternatesAdapter extends BaseAdapter {
 
     private static final String TAG = RecipientAlternatesAdapter.class.getSimpleName().substring(0, 22);
 
+    /**
+     * Number of display names looked up in one query.
+     */
     public static final int MAX_LOOKUPS = 50;
 
     private final String mDisplayName;
@@ -46,6 +49,13 @@ public class RecipientAlternatesAdapter extends BaseAdapter {
 
     private int mCheckedItemPosition = -1;
 
+    private PhotoCache mPhotoCache = PhotoCache.getInstance();
+
+    /**
+     * Size of the photo in a popup row, photos are decoded down to it.
+     */
+    private final int mPhotoSize;
+
     public interface RecipientMatchCallback {
         public void matchesFound(Map<String, RecipientEntry> results);
         /**
@@ -60,6 +70,7 @@ public class RecipientAlternatesAdapter extends BaseAdapter {
         mAdapter = adapter;
         mInflater = LayoutInflater.from(context);
         mCheckedItemChangedListener = listener;
+        mPhotoSize = context.getResources().getDimensionPixelSize(R.dimen.chip_dropdown_photo_size);
 
         doQuery(displayName);
     }
@@ -123,10 +134,8 @@ public class RecipientAlternatesAdapter extends BaseAdapter {
             displayNameView.setVisibility(View.VISIBLE);
             if (imageView != null) {
                 imageView.setVisibility(View.VISIBLE);
-                final byte[] photoBytes = entry.getPhotoBytes();
-                if (photoBytes != null) {
-                    final Bitmap photo = BitmapFactory.decodeByteArray(photoBytes, 0,
-                            photoBytes.length);
+                final Bitmap photo = mPhotoCache.getPhoto(entry, mPhotoSize);
+                if (photo != null) {
                     imageView.setImageBitmap(photo);
                 } else {
                     imageView.setImageResource(getDefaultPhotoResource());
@@ -146,19 +155,29 @@ public class RecipientAlternatesAdapter extends BaseAdapter {
      * information for a contact with the provided display name, if one exists. This
      * may block the UI, so run it in an async task.
      *
+     * Display names are looked up {@link #MAX_LOOKUPS} at a time and the callback is notified
+     * after each of those queries, so results of long recipient lists arrive as they are found.
+     *
      * @param inDisplayNames Array of display names on which to perform the lookup.
      * @param callback RecipientMatchCallback called when a match or matches are found.
      */
     public static void getMatchingRecipients(BaseRecipientAdapter adapter, ArrayList<String> inDisplayNames,
             RecipientMatchCallback callback) {
-        int addressesSize = Math.min(MAX_LOOKUPS, inDisplayNames.size());
-        HashSet<String> displayNames = new HashSet<>();
-        for (int i = 0; i < addressesSize; i++) {
-            displayNames.add(inDisplayNames.get(i));
+        int size = inDisplayNames.size();
+        for (int start = 0; start < size; start += MAX_LOOKUPS) {
+            HashSet<String> displayNames = new HashSet<>();
+            int end = Math.min(start + MAX_LOOKUPS, size);
+            for (int i = start; i < end; i++) {
+                displayNames.add(inDisplayNames.get(i));
+            }
+            getMatchingRecipients(adapter, displayNames, callback);
         }
+    }
 
+    private static void getMatchingRecipients(BaseRecipientAdapter adapter, HashSet<String> displayNames,
+            RecipientMatchCallback callback) {
         if (Log.isLoggable(TAG, Log.DEBUG)) {
-            Log.d(TAG, "Doing reverse lookup for " + inDisplayNames.toString());
+            Log.d(TAG, "Doing reverse lookup for " + displayNames.toString());
         }
 
         final HashMap<String, List<RecipientEntry>> recipientEntryLists = adapter.getAlternativeRecipients(displayNames);
@@ -202,6 +221,13 @@ public class RecipientAlternatesAdapter extends BaseAdapter {
         callback.matchesNotFound(matchesNotFound);
     }
 
+    /**
+     * Sets the cache photos are decoded into. By default the cache shared with chips is used.
+     */
+    public void setPhotoCache(PhotoCache photoCache) {
+        mPhotoCache = photoCache;
+    }
+
     private List<RecipientEntry> getEntries() {
         return mEntries;
     }
@@ -0,0 +1,287 @@
+package sk.rajniak.chips.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Immutable prefix index over recipients.
+ *
+ * Every recipient is split into lower case tokens: the words of its display name, its whole
+ * destination, the local part of the address and the words of the local part and the domain.
+ * Tokens of all recipients are kept in one sorted array next to the positions of their
+ * recipients, so the recipients with a token starting with a prefix form a range found by binary
+ * search. Recipients earlier in the list passed in rank higher, so the first ones found are the
+ * top matches.
+ */
+public class RecipientPrefixIndex {
+
+    private final RecipientEntry[] mEntries;
+
+    /**
+     * Tokens of all recipients, sorted.
+     */
+    private final String[] mTokens;
+
+    /**
+     * Position of the recipient of each token in {@link #mEntries}.
+     */
+    private final int[] mTokenEntries;
+
+    /**
+     * Tokens of each recipient, used to check the rest of the words of a query.
+     */
+    private final String[][] mEntryTokens;
+
+    private final HashMap<String, List<RecipientEntry>> mByDisplayName = new HashMap<>();
+
+    /**
+     * @param entries Recipients ordered by their rank, e.g. by how often they are used.
+     */
+    public RecipientPrefixIndex(List<RecipientEntry> entries) {
+        final int size = entries.size();
+        mEntries = entries.toArray(new RecipientEntry[size]);
+        mEntryTokens = new String[size][];
+
+        final ArrayList<Posting> postings = new ArrayList<>(size * 4);
+        final ArrayList<String> tokens = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            final RecipientEntry entry = mEntries[i];
+            tokens.clear();
+            addTokens(entry, tokens);
+            mEntryTokens[i] = tokens.toArray(new String[tokens.size()]);
+            for (String token : mEntryTokens[i]) {
+                postings.add(new Posting(token, i));
+            }
+
+            final String displayName = entry.getDisplayName();
+            if (displayName != null) {
+                List<RecipientEntry> sameName = mByDisplayName.get(displayName);
+                if (sameName == null) {
+                    sameName = new ArrayList<>(1);
+                    mByDisplayName.put(displayName, sameName);
+                }
+                sameName.add(entry);
+            }
+        }
+
+        final Posting[] sorted = postings.toArray(new Posting[postings.size()]);
+        Arrays.sort(sorted, POSTING_ORDER);
+        mTokens = new String[sorted.length];
+        mTokenEntries = new int[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            mTokens[i] = sorted[i].mToken;
+            mTokenEntries[i] = sorted[i].mEntry;
+        }
+    }
+
+    public int size() {
+        return mEntries.length;
+    }
+
+    /**
+     * Returns up to maxResults best ranked recipients matching the query: every word of the query
+     * has to be the prefix of a token of the recipient, ignoring case.
+     */
+    public List<RecipientEntry> search(CharSequence query, int maxResults) {
+        final String[] words = splitWords(query.toString().toLowerCase(Locale.getDefault()));
+        if (words.length == 0 || maxResults <= 0) {
+            return Collections.emptyList();
+        }
+        // Scan the tokens of the word with the fewest of them, check the other words per match.
+        final int[] range = findCandidates(words);
+        final int start = range[0];
+        final int end = range[1];
+
+        // Positions of the best matches so far, sorted.
+        final int[] top = new int[maxResults];
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            final int entry = mTokenEntries[i];
+            if (count == maxResults && entry >= top[count - 1]) {
+                continue;
+            }
+            int insert = Arrays.binarySearch(top, 0, count, entry);
+            if (insert >= 0) {
+                // Found through another token already.
+                continue;
+            }
+            if (words.length > 1 && !matchesWords(mEntryTokens[entry], words)) {
+                continue;
+            }
+            insert = -insert - 1;
+            final int moved = Math.min(count, maxResults - 1) - insert;
+            System.arraycopy(top, insert, top, insert + 1, moved);
+            top[insert] = entry;
+            count = Math.min(count + 1, maxResults);
+        }
+
+        final List<RecipientEntry> results = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            results.add(mEntries[top[i]]);
+        }
+        return results;
+    }
+
+    /**
+     * Returns the number of tokens {@link #search} looks at for the query.
+     */
+    int countCandidates(CharSequence query) {
+        final String[] words = splitWords(query.toString().toLowerCase(Locale.getDefault()));
+        if (words.length == 0) {
+            return 0;
+        }
+        final int[] range = findCandidates(words);
+        return range[1] - range[0];
+    }
+
+    /**
+     * Returns the number of tokens of all recipients.
+     */
+    int getTokenCount() {
+        return mTokens.length;
+    }
+
+    /**
+     * Returns the start and end of the tokens starting with the word of the query that starts
+     * the fewest tokens.
+     */
+    private int[] findCandidates(String[] words) {
+        int start = 0;
+        int end = Integer.MAX_VALUE;
+        for (String word : words) {
+            final int wordStart = lowerBound(word);
+            final int wordEnd = lowerBound(word + Character.MAX_VALUE);
+            if (wordEnd - wordStart < end - start) {
+                start = wordStart;
+                end = wordEnd;
+            }
+        }
+        return new int[] {start, end};
+    }
+
+    /**
+     * Returns true if the recipient is a match of the query, same as {@link #search} decides it.
+     * The recipient does not have to be in the index.
+     */
+    public static boolean matches(RecipientEntry entry, CharSequence query) {
+        final String[] words = splitWords(query.toString().toLowerCase(Locale.getDefault()));
+        if (words.length == 0) {
+            return false;
+        }
+        final ArrayList<String> tokens = new ArrayList<>();
+        addTokens(entry, tokens);
+        return matchesWords(tokens.toArray(new String[tokens.size()]), words);
+    }
+
+    /**
+     * Returns the recipients with exactly the display name.
+     */
+    public List<RecipientEntry> getByDisplayName(String displayName) {
+        final List<RecipientEntry> entries = mByDisplayName.get(displayName);
+        return entries != null ? entries : Collections.<RecipientEntry>emptyList();
+    }
+
+    private static boolean matchesWords(String[] tokens, String[] words) {
+        for (String word : words) {
+            boolean found = false;
+            for (String token : tokens) {
+                if (token.startsWith(word)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the index of the first token not smaller than the prefix.
+     */
+    private int lowerBound(String prefix) {
+        int low = 0;
+        int high = mTokens.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (mTokens[mid].compareTo(prefix) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static void addTokens(RecipientEntry entry, List<String> tokens) {
+        final String displayName = entry.getDisplayName();
+        if (displayName != null) {
+            addWords(displayName.toLowerCase(Locale.getDefault()), tokens);
+        }
+        final String destination = entry.getDestination();
+        if (destination != null) {
+            final String lowerCase = destination.toLowerCase(Locale.getDefault()).trim();
+            addToken(lowerCase, tokens);
+            final int at = lowerCase.indexOf('@');
+            if (at > 0) {
+                addToken(lowerCase.substring(0, at), tokens);
+            }
+            addWords(lowerCase, tokens);
+        }
+    }
+
+    private static void addWords(String text, List<String> tokens) {
+        for (String word : splitWords(text)) {
+            addToken(word, tokens);
+        }
+    }
+
+    private static void addToken(String token, List<String> tokens) {
+        if (token.length() > 0 && !tokens.contains(token)) {
+            tokens.add(token);
+        }
+    }
+
+    /**
+     * Splits the text into runs of letters and digits.
+     */
+    private static String[] splitWords(String text) {
+        final ArrayList<String> words = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            final boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                words.add(text.substring(start, i));
+                start = -1;
+            }
+        }
+        return words.toArray(new String[words.size()]);
+    }
+
+    private static final Comparator<Posting> POSTING_ORDER = new Comparator<Posting>() {
+        @Override
+        public int compare(Posting lhs, Posting rhs) {
+            final int order = lhs.mToken.compareTo(rhs.mToken);
+            return order != 0 ? order : lhs.mEntry - rhs.mEntry;
+        }
+    };
+
+    private static final class Posting {
+        final String mToken;
+
+        final int mEntry;
+
+        Posting(String token, int entry) {
+            mToken = token;
+            mEntry = entry;
+        }
+    }
+}
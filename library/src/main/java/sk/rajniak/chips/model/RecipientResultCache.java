@@ -0,0 +1,133 @@
+package sk.rajniak.chips.model;
+
+import android.os.SystemClock;
+import android.support.v4.util.LruCache;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Cache of autocomplete results by their constraint.
+ *
+ * Constraints are compared trimmed and ignoring case, so typing a constraint again after
+ * backspacing or refocusing the field is answered without asking the source. Results expire after
+ * a while, so changes of the source show up eventually even if nobody invalidates the cache.
+ */
+public class RecipientResultCache {
+
+    private static final int DEFAULT_MAX_ENTRIES = 64;
+
+    private static final long DEFAULT_TIME_TO_LIVE_MS = 5 * 60 * 1000;
+
+    private final LruCache<String, Results> mCache;
+
+    private final long mTimeToLive;
+
+    private int mHitCount;
+
+    private int mMissCount;
+
+    public RecipientResultCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_TIME_TO_LIVE_MS);
+    }
+
+    /**
+     * @param maxEntries Number of constraints kept.
+     * @param timeToLiveMillis How long results are used after they were put in the cache.
+     */
+    public RecipientResultCache(int maxEntries, long timeToLiveMillis) {
+        mCache = new LruCache<>(maxEntries);
+        mTimeToLive = timeToLiveMillis;
+    }
+
+    /**
+     * Returns results of the constraint or null if there are none or they expired.
+     */
+    public List<RecipientEntry> get(CharSequence constraint) {
+        final String key = normalize(constraint);
+        final Results results = mCache.get(key);
+        if (results != null && now() - results.mTime > mTimeToLive) {
+            mCache.remove(key);
+            countMiss();
+            return null;
+        }
+        if (results != null) {
+            countHit();
+            return results.mEntries;
+        }
+        countMiss();
+        return null;
+    }
+
+    public void put(CharSequence constraint, List<RecipientEntry> entries) {
+        mCache.put(normalize(constraint), new Results(
+                Collections.unmodifiableList(entries), now()));
+    }
+
+    /**
+     * Drop all results, e.g. when recipients of the source changed.
+     */
+    public void evictAll() {
+        mCache.evictAll();
+    }
+
+    /**
+     * Returns the number of cached constraints.
+     */
+    public int size() {
+        return mCache.size();
+    }
+
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int missCount() {
+        return mMissCount;
+    }
+
+    /**
+     * Returns the share of lookups answered by the cache, expired results count as misses.
+     */
+    public synchronized float getHitRate() {
+        final int lookups = mHitCount + mMissCount;
+        return lookups > 0 ? (float) mHitCount / lookups : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "RecipientResultCache[size=" + size() + ",hits=" + hitCount() + ",misses="
+                + missCount() + "]";
+    }
+
+    /**
+     * Returns the time results are stamped with, overridden by tests.
+     */
+    long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    private synchronized void countHit() {
+        mHitCount++;
+    }
+
+    private synchronized void countMiss() {
+        mMissCount++;
+    }
+
+    private static String normalize(CharSequence constraint) {
+        return constraint.toString().trim().toLowerCase(Locale.getDefault());
+    }
+
+    private static final class Results {
+        final List<RecipientEntry> mEntries;
+
+        final long mTime;
+
+        Results(List<RecipientEntry> entries, long time) {
+            mEntries = entries;
+            mTime = time;
+        }
+    }
+}
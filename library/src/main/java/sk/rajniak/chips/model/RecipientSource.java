@@ -0,0 +1,24 @@
+package sk.rajniak.chips.model;
+
+import java.util.List;
+
+/**
+ * Source of recipients of a {@link MultiSourceRecipientAdapter}, e.g. the local address book, a
+ * remote directory or recently used recipients.
+ */
+public interface RecipientSource {
+
+    /**
+     * Returns the best matches of the constraint, called on a worker thread. Slow sources should
+     * check the token now and then and give up once it is cancelled.
+     *
+     * @param maxResults Preferred number of results.
+     */
+    List<RecipientEntry> getMatchingRecipients(CharSequence constraint, int maxResults,
+            CancellationToken cancellationToken);
+
+    /**
+     * Returns the recipients with the display name, called on a worker thread.
+     */
+    List<RecipientEntry> getAlternativeRecipients(String displayName);
+}
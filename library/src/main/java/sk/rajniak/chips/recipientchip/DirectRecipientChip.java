@@ -0,0 +1,114 @@
+package sk.rajniak.chips.recipientchip;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.text.style.ReplacementSpan;
+
+import sk.rajniak.chips.model.RecipientEntry;
+import sk.rajniak.chips.render.ChipLayout;
+import sk.rajniak.chips.render.ChipPainter;
+
+/**
+ * DirectRecipientChip defines a span that contains information relevant to a
+ * particular recipient and paints the chip straight onto the canvas of the text view,
+ * so no bitmap has to be kept around for it.
+ */
+public class DirectRecipientChip extends ReplacementSpan implements DrawableRecipientChip {
+    private final SimpleRecipientChip mDelegate;
+
+    private final ChipPainter mPainter;
+
+    private final ChipLayout mLayout;
+
+    public DirectRecipientChip(final ChipPainter painter, final ChipLayout layout,
+            final RecipientEntry entry) {
+        super();
+
+        mDelegate = new SimpleRecipientChip(entry);
+        mPainter = painter;
+        mLayout = layout;
+    }
+
+    @Override
+    public void setSelected(final boolean selected) {
+        mDelegate.setSelected(selected);
+    }
+
+    @Override
+    public boolean isSelected() {
+        return mDelegate.isSelected();
+    }
+
+    @Override
+    public CharSequence getDisplay() {
+        return mDelegate.getDisplay();
+    }
+
+    @Override
+    public CharSequence getValue() {
+        return mDelegate.getValue();
+    }
+
+    @Override
+    public long getContactId() {
+        return mDelegate.getContactId();
+    }
+
+    @Override
+    public RecipientEntry getEntry() {
+        return mDelegate.getEntry();
+    }
+
+    @Override
+    public void setOriginalText(final String text) {
+        mDelegate.setOriginalText(text);
+    }
+
+    @Override
+    public CharSequence getOriginalText() {
+        return mDelegate.getOriginalText();
+    }
+
+    public ChipLayout getChipLayout() {
+        return mLayout;
+    }
+
+    @Override
+    public int getSize(final Paint paint, final CharSequence text, final int start, final int end,
+            final Paint.FontMetricsInt fm) {
+        // Same metrics as a bottom aligned ImageSpan of the chip size.
+        if (fm != null) {
+            fm.ascent = -mLayout.getHeight();
+            fm.descent = 0;
+
+            fm.top = fm.ascent;
+            fm.bottom = 0;
+        }
+        return mLayout.getWidth();
+    }
+
+    @Override
+    public void draw(final Canvas canvas, final CharSequence text, final int start, final int end,
+            final float x, final int top, final int y, final int bottom, final Paint paint) {
+        canvas.save();
+        canvas.translate(x, bottom - mLayout.getHeight());
+        mPainter.draw(canvas, mLayout, paint);
+        canvas.restore();
+    }
+
+    @Override
+    public Rect getBounds() {
+        return new Rect(0, 0, mLayout.getWidth(), mLayout.getHeight());
+    }
+
+    @Override
+    public void draw(final Canvas canvas) {
+        mPainter.draw(canvas, mLayout);
+    }
+
+    @Override
+    public String toString() {
+        return mDelegate.toString();
+    }
+}
@@ -0,0 +1,78 @@
+package sk.rajniak.chips.render;
+
+import android.graphics.Bitmap;
+
+/**
+ * Rasterized chip. The backing bitmap may be wider than the chip because it comes from the
+ * {@link ChipBitmapPool}, only the top left {@link #getWidth()} x {@link #getHeight()} pixels
+ * are drawn.
+ *
+ * Every chip drawing this bitmap and the {@link ChipBitmapCache} hold a reference to it. When the
+ * last reference is released, the bitmap goes back to the pool.
+ */
+public final class ChipBitmap {
+
+    private final Bitmap mBitmap;
+
+    private final int mWidth;
+
+    private final int mHeight;
+
+    private final float mNaturalWidth;
+
+    private final ChipBitmapPool mPool;
+
+    private int mReferences;
+
+    /**
+     * @param naturalWidth See {@link ChipLayout#getNaturalWidth()}.
+     */
+    public ChipBitmap(Bitmap bitmap, int width, int height, float naturalWidth,
+            ChipBitmapPool pool) {
+        mBitmap = bitmap;
+        mWidth = width;
+        mHeight = height;
+        mNaturalWidth = naturalWidth;
+        mPool = pool;
+    }
+
+    public Bitmap getBitmap() {
+        return mBitmap;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * See {@link ChipLayout#getNaturalWidth()}.
+     */
+    public float getNaturalWidth() {
+        return mNaturalWidth;
+    }
+
+    /**
+     * Returns the number of bytes used by the backing bitmap.
+     */
+    public int getByteCount() {
+        return ChipBitmapCache.getByteCount(mBitmap);
+    }
+
+    public synchronized void acquire() {
+        mReferences++;
+    }
+
+    public synchronized void release() {
+        if (mReferences <= 0) {
+            return;
+        }
+        mReferences--;
+        if (mReferences == 0 && mPool != null) {
+            mPool.put(mBitmap);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package sk.rajniak.chips.render;
+
+import android.graphics.Bitmap;
+import android.support.v4.util.LruCache;
+import android.text.TextUtils;
+
+import sk.rajniak.chips.model.RecipientEntry;
+
+/**
+ * Memory bounded LRU cache of rendered chip bitmaps.
+ *
+ * Chips are re-rendered whenever they are selected, unselected, replaced or re-laid out, even
+ * though the pixels only depend on the recipient, the selection state and the space the chip may
+ * take up. Keeping the rendered bitmaps around lets those operations reuse pixels instead of
+ * drawing them again.
+ */
+public class ChipBitmapCache {
+
+    /**
+     * Fraction of the maximum heap used as the default byte budget.
+     */
+    private static final int DEFAULT_HEAP_FRACTION = 16;
+
+    private final LruCache<Key, ChipBitmap> mCache;
+
+    public ChipBitmapCache() {
+        this(getDefaultMaxBytes());
+    }
+
+    /**
+     * @param maxBytes Byte budget for all cached bitmaps together.
+     */
+    public ChipBitmapCache(int maxBytes) {
+        mCache = new LruCache<Key, ChipBitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(Key key, ChipBitmap value) {
+                return value.getByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, Key key, ChipBitmap oldValue,
+                    ChipBitmap newValue) {
+                // Chips still showing the bitmap keep their own reference to it.
+                oldValue.release();
+            }
+        };
+    }
+
+    /**
+     * Returns the default byte budget which is a fraction of the maximum heap.
+     */
+    public static int getDefaultMaxBytes() {
+        return (int) Math.min(Integer.MAX_VALUE,
+                Runtime.getRuntime().maxMemory() / DEFAULT_HEAP_FRACTION);
+    }
+
+    /**
+     * Returns the number of bytes used by the pixels of the bitmap.
+     */
+    static int getByteCount(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    /**
+     * Returns cached bitmap for the key or null if there is none.
+     */
+    public ChipBitmap get(Key key) {
+        return mCache.get(key);
+    }
+
+    public void put(Key key, ChipBitmap chipBitmap) {
+        chipBitmap.acquire();
+        mCache.put(key, chipBitmap);
+    }
+
+    /**
+     * Drops the cached bitmap of the key, its pixels go back to the pool once no chip shows them.
+     */
+    public void remove(Key key) {
+        mCache.remove(key);
+    }
+
+    /**
+     * Drops all cached bitmaps, e.g. when chip resources have changed.
+     */
+    public void evictAll() {
+        mCache.evictAll();
+    }
+
+    /**
+     * Returns the number of bytes currently held by the cache.
+     */
+    public int size() {
+        return mCache.size();
+    }
+
+    /**
+     * Returns the byte budget of the cache.
+     */
+    public int maxSize() {
+        return mCache.maxSize();
+    }
+
+    public int hitCount() {
+        return mCache.hitCount();
+    }
+
+    public int missCount() {
+        return mCache.missCount();
+    }
+
+    public int evictionCount() {
+        return mCache.evictionCount();
+    }
+
+    @Override
+    public String toString() {
+        return "ChipBitmapCache[size=" + size() + ",maxSize=" + maxSize() + ",hits=" + hitCount()
+                + ",misses=" + missCount() + ",evictions=" + evictionCount() + "]";
+    }
+
+    /**
+     * Identifies rendered chip by everything its pixels depend on.
+     */
+    public static final class Key {
+        private final String mDestination;
+
+        private final String mDisplayName;
+
+        private final long mContactId;
+
+        /**
+         * Photo drawn into the chip: the contact id for contacts, the photo bytes themselves for
+         * created recipients which all share the same id, null if there is no photo.
+         */
+        private final Object mPhotoId;
+
+        private final boolean mValid;
+
+        private final boolean mPressed;
+
+        private final int mMaxWidth;
+
+        private final float mFontSize;
+
+        private final Bitmap.Config mConfig;
+
+        public Key(RecipientEntry entry, boolean pressed, int maxWidth, float fontSize,
+                Bitmap.Config config) {
+            mDestination = entry.getDestination();
+            mDisplayName = entry.getDisplayName();
+            mContactId = entry.getContactId();
+            mPhotoId = getPhotoId(entry);
+            mValid = entry.isValid();
+            mPressed = pressed;
+            mMaxWidth = maxWidth;
+            mFontSize = fontSize;
+            mConfig = config;
+        }
+
+        public Bitmap.Config getConfig() {
+            return mConfig;
+        }
+
+        private static Object getPhotoId(RecipientEntry entry) {
+            final byte[] photoBytes = entry.getPhotoBytes();
+            if (photoBytes == null) {
+                return null;
+            }
+            // Byte arrays are compared by identity, which tells photos of created recipients apart.
+            return RecipientEntry.isCreatedRecipient(entry.getContactId())
+                    ? photoBytes : Long.valueOf(entry.getContactId());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return mContactId == other.mContactId
+                    && mValid == other.mValid
+                    && mPressed == other.mPressed
+                    && mMaxWidth == other.mMaxWidth
+                    && Float.compare(mFontSize, other.mFontSize) == 0
+                    && mConfig == other.mConfig
+                    && (mPhotoId != null ? mPhotoId.equals(other.mPhotoId) : other.mPhotoId == null)
+                    && TextUtils.equals(mDestination, other.mDestination)
+                    && TextUtils.equals(mDisplayName, other.mDisplayName);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = mDestination != null ? mDestination.hashCode() : 0;
+            result = 31 * result + (mDisplayName != null ? mDisplayName.hashCode() : 0);
+            result = 31 * result + (int) (mContactId ^ (mContactId >>> 32));
+            result = 31 * result + (mPhotoId != null ? mPhotoId.hashCode() : 0);
+            result = 31 * result + (mValid ? 1 : 0);
+            result = 31 * result + (mPressed ? 1 : 0);
+            result = 31 * result + mMaxWidth;
+            result = 31 * result + Float.floatToIntBits(mFontSize);
+            result = 31 * result + (mConfig != null ? mConfig.hashCode() : 0);
+            return result;
+        }
+    }
+}
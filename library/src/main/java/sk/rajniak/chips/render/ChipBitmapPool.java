@@ -0,0 +1,154 @@
+package sk.rajniak.chips.render;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Pool of chip bitmaps that are no longer drawn by any chip.
+ *
+ * Bitmaps are bucketed by config, height and width rounded up to {@link #WIDTH_BUCKET}, so a bitmap
+ * of a removed chip can be handed to the next chip of similar size instead of allocating a new one.
+ * The pool is used from the UI thread as well as from the rasterizing worker, so it is
+ * synchronized.
+ */
+public class ChipBitmapPool {
+
+    /**
+     * Granularity of widths of pooled bitmaps in pixels.
+     */
+    static final int WIDTH_BUCKET = 32;
+
+    /**
+     * Fraction of the maximum heap used as the default byte budget.
+     */
+    private static final int DEFAULT_HEAP_FRACTION = 32;
+
+    private final HashMap<Bucket, List<Bitmap>> mBuckets = new HashMap<>();
+
+    private final int mMaxBytes;
+
+    private int mSize;
+
+    private int mHitCount;
+
+    private int mMissCount;
+
+    public ChipBitmapPool() {
+        this((int) Math.min(Integer.MAX_VALUE,
+                Runtime.getRuntime().maxMemory() / DEFAULT_HEAP_FRACTION));
+    }
+
+    /**
+     * @param maxBytes Byte budget for all pooled bitmaps together.
+     */
+    public ChipBitmapPool(int maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Returns a cleared bitmap at least as wide as requested, taken from the pool if possible.
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        final Bucket bucket = new Bucket(bucketWidth(width), height, config);
+        final List<Bitmap> bitmaps = mBuckets.get(bucket);
+        if (bitmaps != null && !bitmaps.isEmpty()) {
+            final Bitmap bitmap = bitmaps.remove(bitmaps.size() - 1);
+            mSize -= ChipBitmapCache.getByteCount(bitmap);
+            mHitCount++;
+            bitmap.eraseColor(Color.TRANSPARENT);
+            return bitmap;
+        }
+        mMissCount++;
+        return Bitmap.createBitmap(bucket.mWidth, height, config);
+    }
+
+    /**
+     * Takes back a bitmap no chip draws anymore. Bitmaps that would exceed the budget are left for
+     * the garbage collector.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+        final int byteCount = ChipBitmapCache.getByteCount(bitmap);
+        if (mSize + byteCount > mMaxBytes
+                || bitmap.getWidth() != bucketWidth(bitmap.getWidth())) {
+            return;
+        }
+        final Bucket bucket = new Bucket(bitmap.getWidth(), bitmap.getHeight(),
+                bitmap.getConfig());
+        List<Bitmap> bitmaps = mBuckets.get(bucket);
+        if (bitmaps == null) {
+            bitmaps = new ArrayList<>();
+            mBuckets.put(bucket, bitmaps);
+        }
+        bitmaps.add(bitmap);
+        mSize += byteCount;
+    }
+
+    /**
+     * Drops all pooled bitmaps.
+     */
+    public synchronized void clear() {
+        mBuckets.clear();
+        mSize = 0;
+    }
+
+    /**
+     * Returns the number of bytes currently held by the pool.
+     */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public int maxSize() {
+        return mMaxBytes;
+    }
+
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int missCount() {
+        return mMissCount;
+    }
+
+    static int bucketWidth(int width) {
+        return (width + WIDTH_BUCKET - 1) / WIDTH_BUCKET * WIDTH_BUCKET;
+    }
+
+    private static final class Bucket {
+        private final int mWidth;
+
+        private final int mHeight;
+
+        private final Bitmap.Config mConfig;
+
+        Bucket(int width, int height, Bitmap.Config config) {
+            mWidth = width;
+            mHeight = height;
+            mConfig = config;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Bucket)) {
+                return false;
+            }
+            final Bucket other = (Bucket) o;
+            return mWidth == other.mWidth && mHeight == other.mHeight && mConfig == other.mConfig;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = mWidth;
+            result = 31 * result + mHeight;
+            result = 31 * result + (mConfig != null ? mConfig.hashCode() : 0);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package sk.rajniak.chips.render;
+
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+
+/**
+ * Drawable showing a {@link ChipBitmap}. Holds a reference to the chip bitmap until
+ * {@link #release()} is called, after that it draws nothing as the pixels may belong to
+ * another chip already.
+ *
+ * A drawable created before its chip is rasterized shows the placeholder, usually the chip
+ * background, until the bitmap is handed over with {@link #setChipBitmap(ChipBitmap)}. It keeps
+ * the measured chip, so the bitmap can be dropped while the chip is off-screen and rasterized
+ * again later.
+ */
+public class ChipDrawable extends Drawable {
+
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    private final Rect mSrc = new Rect();
+
+    private final Drawable mPlaceholder;
+
+    private final ChipLayout mLayout;
+
+    private final ChipBitmapCache.Key mKey;
+
+    private final float mNaturalWidth;
+
+    private ChipBitmap mChipBitmap;
+
+    private boolean mRasterizing;
+
+    private boolean mReleased;
+
+    public ChipDrawable(ChipBitmap chipBitmap) {
+        mPlaceholder = null;
+        mLayout = null;
+        mKey = null;
+        mNaturalWidth = chipBitmap.getNaturalWidth();
+        mSrc.set(0, 0, chipBitmap.getWidth(), chipBitmap.getHeight());
+        setBounds(0, 0, chipBitmap.getWidth(), chipBitmap.getHeight());
+        setChipBitmap(chipBitmap);
+    }
+
+    /**
+     * Creates drawable of the measured chip size which shows the placeholder until
+     * {@link #setChipBitmap(ChipBitmap)} is called.
+     *
+     * @param key Key the rasterized chip is cached under.
+     */
+    public ChipDrawable(ChipLayout layout, ChipBitmapCache.Key key, Drawable placeholder) {
+        mPlaceholder = placeholder;
+        mLayout = layout;
+        mKey = key;
+        mNaturalWidth = layout.getNaturalWidth();
+        mSrc.set(0, 0, layout.getWidth(), layout.getHeight());
+        setBounds(0, 0, layout.getWidth(), layout.getHeight());
+    }
+
+    /**
+     * Get the measured chip, null if the drawable was created from a bitmap.
+     */
+    public ChipLayout getLayout() {
+        return mLayout;
+    }
+
+    public ChipBitmapCache.Key getKey() {
+        return mKey;
+    }
+
+    /**
+     * See {@link ChipLayout#getNaturalWidth()}.
+     */
+    public float getNaturalWidth() {
+        return mNaturalWidth;
+    }
+
+    /**
+     * Returns true if the chip shows the placeholder and nobody is rasterizing it yet.
+     */
+    public boolean needsRasterizing() {
+        return mLayout != null && mChipBitmap == null && !mRasterizing && !mReleased;
+    }
+
+    /**
+     * Marks the chip as handed over to the rasterizer.
+     */
+    public void setRasterizing() {
+        mRasterizing = true;
+    }
+
+    /**
+     * Show the rasterized chip instead of the placeholder.
+     *
+     * @return false if the drawable was already released and does not keep the bitmap.
+     */
+    public boolean setChipBitmap(ChipBitmap chipBitmap) {
+        mRasterizing = false;
+        if (mReleased) {
+            return false;
+        }
+        chipBitmap.acquire();
+        if (mChipBitmap != null) {
+            mChipBitmap.release();
+        }
+        mChipBitmap = chipBitmap;
+        return true;
+    }
+
+    /**
+     * Returns true once the chip bitmap is shown instead of the placeholder.
+     */
+    public boolean isRasterized() {
+        return mChipBitmap != null;
+    }
+
+    /**
+     * Give the chip bitmap back and show the placeholder again, the chip can be rasterized
+     * again from its layout. Does nothing for drawables created from a bitmap.
+     */
+    public void discardChipBitmap() {
+        if (mLayout != null && mChipBitmap != null) {
+            mChipBitmap.release();
+            mChipBitmap = null;
+        }
+    }
+
+    /**
+     * Give the chip bitmap back, the drawable must not be drawn anymore.
+     */
+    public void release() {
+        mReleased = true;
+        if (mChipBitmap != null) {
+            mChipBitmap.release();
+            mChipBitmap = null;
+        }
+    }
+
+    @Override
+    public void draw(Canvas canvas) {
+        if (mChipBitmap != null) {
+            canvas.drawBitmap(mChipBitmap.getBitmap(), mSrc, getBounds(), mPaint);
+        } else if (!mReleased && mPlaceholder != null) {
+            mPlaceholder.setBounds(getBounds().left, getBounds().top, getBounds().right,
+                    getBounds().bottom);
+            mPlaceholder.draw(canvas);
+        }
+    }
+
+    @Override
+    public int getIntrinsicWidth() {
+        return mSrc.width();
+    }
+
+    @Override
+    public int getIntrinsicHeight() {
+        return mSrc.height();
+    }
+
+    @Override
+    public int getOpacity() {
+        return PixelFormat.TRANSLUCENT;
+    }
+
+    @Override
+    public void setAlpha(int alpha) {
+        mPaint.setAlpha(alpha);
+        invalidateSelf();
+    }
+
+    @Override
+    public void setColorFilter(ColorFilter cf) {
+        mPaint.setColorFilter(cf);
+        invalidateSelf();
+    }
+}
@@ -0,0 +1,79 @@
+package sk.rajniak.chips.render;
+
+import sk.rajniak.chips.model.RecipientEntry;
+
+/**
+ * Measured chip: everything needed to paint a chip without measuring its text again.
+ */
+public final class ChipLayout {
+
+    private final RecipientEntry mEntry;
+
+    private final boolean mPressed;
+
+    private final CharSequence mText;
+
+    private final int mWidth;
+
+    private final int mHeight;
+
+    private final float mTextYOffset;
+
+    private final float mNaturalWidth;
+
+    private final boolean mDrawPhoto;
+
+    ChipLayout(RecipientEntry entry, boolean pressed, CharSequence text, int width, int height,
+            float textYOffset, float naturalWidth, boolean drawPhoto) {
+        mEntry = entry;
+        mPressed = pressed;
+        mText = text;
+        mWidth = width;
+        mHeight = height;
+        mTextYOffset = textYOffset;
+        mNaturalWidth = naturalWidth;
+        mDrawPhoto = drawPhoto;
+    }
+
+    public RecipientEntry getEntry() {
+        return mEntry;
+    }
+
+    public boolean isPressed() {
+        return mPressed;
+    }
+
+    /**
+     * Get the ellipsized text drawn in the chip.
+     */
+    public CharSequence getText() {
+        return mText;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Get the baseline of the text, relative to the top of the chip.
+     */
+    public float getTextYOffset() {
+        return mTextYOffset;
+    }
+
+    /**
+     * Get the available width the chip needs to show its text without ellipsis. The chip looks
+     * the same for every available width at least this large.
+     */
+    public float getNaturalWidth() {
+        return mNaturalWidth;
+    }
+
+    boolean shouldDrawPhoto() {
+        return mDrawPhoto;
+    }
+}
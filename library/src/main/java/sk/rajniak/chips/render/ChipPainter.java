@@ -0,0 +1,353 @@
+package sk.rajniak.chips.render;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.drawable.Drawable;
+import android.text.TextPaint;
+import android.text.TextUtils;
+import android.util.Log;
+
+import sk.rajniak.chips.model.RecipientEntry;
+
+/**
+ * Measures and paints chips. The same painting is used to rasterize chips into bitmaps and to draw
+ * them straight onto the canvas of the text view.
+ */
+public class ChipPainter {
+
+    private static final String TAG = ChipPainter.class.getSimpleName();
+
+    private final Drawable mChipBackground;
+
+    private final Drawable mChipBackgroundPressed;
+
+    private final Drawable mInvalidChipBackground;
+
+    private final Drawable mChipDelete;
+
+    private final Bitmap mDefaultContactPhoto;
+
+    private final int mChipPadding;
+
+    private final float mChipHeight;
+
+    private final float mChipFontSize;
+
+    private final int mTextColor;
+
+    private final int mSelectedTextColor;
+
+    private PhotoCache mPhotoCache = PhotoCache.getInstance();
+
+    /**
+     * Default photo scaled down to chip size once, see {@link #getDefaultPhoto()}.
+     */
+    private Bitmap mScaledDefaultContactPhoto;
+
+    private ChipTextMeasureCache mTextMeasureCache;
+
+    /**
+     * Width of a space at {@link #mSpaceTextSize}, measured once per text size.
+     */
+    private float mSpaceWidth;
+
+    private float mSpaceTextSize = -1;
+
+    /**
+     * Paint of chips drawn on their own, see {@link #draw(Canvas, ChipLayout)}.
+     */
+    private final Paint mPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+    public ChipPainter(Drawable chipBackground, Drawable chipBackgroundPressed,
+            Drawable invalidChipBackground, Drawable chipDelete, Bitmap defaultContactPhoto,
+            int chipPadding, float chipHeight, float chipFontSize, int textColor,
+            int selectedTextColor) {
+        mChipBackground = chipBackground;
+        mChipBackgroundPressed = chipBackgroundPressed;
+        mInvalidChipBackground = invalidChipBackground;
+        mChipDelete = chipDelete;
+        mDefaultContactPhoto = defaultContactPhoto;
+        mChipPadding = chipPadding;
+        mChipHeight = chipHeight;
+        mChipFontSize = chipFontSize;
+        mTextColor = textColor;
+        mSelectedTextColor = selectedTextColor;
+    }
+
+    /**
+     * Returns painter with its own instances of the chip drawables, so that it can paint on
+     * another thread while this one keeps being used by the UI thread.
+     */
+    public ChipPainter copy() {
+        ChipPainter copy = new ChipPainter(copyDrawable(mChipBackground),
+                copyDrawable(mChipBackgroundPressed), copyDrawable(mInvalidChipBackground),
+                copyDrawable(mChipDelete), mDefaultContactPhoto, mChipPadding, mChipHeight,
+                mChipFontSize, mTextColor, mSelectedTextColor);
+        copy.setPhotoCache(mPhotoCache);
+        copy.setTextMeasureCache(mTextMeasureCache);
+        return copy;
+    }
+
+    private static Drawable copyDrawable(Drawable drawable) {
+        if (drawable == null) {
+            return null;
+        }
+        Drawable.ConstantState state = drawable.getConstantState();
+        return state != null ? state.newDrawable() : drawable;
+    }
+
+    /**
+     * Sets the cache of measured labels, or null to measure every time.
+     */
+    public void setTextMeasureCache(ChipTextMeasureCache textMeasureCache) {
+        mTextMeasureCache = textMeasureCache;
+    }
+
+    /**
+     * Sets the cache contact photos are decoded into. By default the cache shared with the
+     * dropdown is used.
+     */
+    public void setPhotoCache(PhotoCache photoCache) {
+        mPhotoCache = photoCache;
+    }
+
+    /**
+     * Measure chip for the recipient. Text is ellipsized so that the chip takes AT MOST the
+     * available width.
+     *
+     * @param displayText Text to display in the chip.
+     * @param availableWidth Max amount of space the chip can take up.
+     * @param paint Paint used for measuring, its text size is changed to chip font size.
+     */
+    public ChipLayout measure(RecipientEntry entry, CharSequence displayText, boolean pressed,
+            float availableWidth, TextPaint paint) {
+        // Make sure to leave space for padding on the sides and for the photo or delete icon.
+        int height = (int) mChipHeight;
+        int iconWidth = height;
+        float spaceWidth = getSpaceWidth(paint);
+        float maxTextWidth = availableWidth - iconWidth - spaceWidth;
+        ChipTextMeasureCache.Measurement measurement = measureText(displayText, paint,
+                maxTextWidth, height);
+        CharSequence ellipsizedText = measurement.getText();
+        // Make sure there is a minimum chip width so the user can ALWAYS
+        // tap a chip without difficulty.
+        int width = Math.max(iconWidth * 2, (int) Math.floor(measurement.getTextWidth())
+                + (mChipPadding * 2) + iconWidth);
+        float textYOffset = measurement.getTextYOffset();
+        float naturalWidth = measurement.getNaturalTextWidth() + iconWidth + spaceWidth;
+
+        // Don't draw photos for recipients that have been typed in OR generated on the fly.
+        long contactId = entry.getContactId();
+        boolean drawPhoto = !pressed && contactId != RecipientEntry.INVALID_CONTACT
+                && contactId != RecipientEntry.GENERATED_CONTACT
+                && !TextUtils.isEmpty(entry.getDisplayName());
+
+        return new ChipLayout(entry, pressed, ellipsizedText, width, height, textYOffset,
+                naturalWidth, drawPhoto);
+    }
+
+    private float getSpaceWidth(TextPaint paint) {
+        if (paint.getTextSize() != mSpaceTextSize) {
+            float[] widths = new float[1];
+            paint.getTextWidths(" ", widths);
+            mSpaceWidth = widths[0];
+            mSpaceTextSize = paint.getTextSize();
+        }
+        return mSpaceWidth;
+    }
+
+    private ChipTextMeasureCache.Measurement measureText(CharSequence displayText,
+            TextPaint paint, float maxTextWidth, int height) {
+        ChipTextMeasureCache.Key key = null;
+        if (mTextMeasureCache != null) {
+            key = new ChipTextMeasureCache.Key(displayText, mChipFontSize, maxTextWidth,
+                    paint.getTypeface());
+            ChipTextMeasureCache.Measurement measurement = mTextMeasureCache.get(key);
+            if (measurement != null) {
+                paint.setTextSize(mChipFontSize);
+                return measurement;
+            }
+        }
+        CharSequence ellipsizedText = ellipsizeText(displayText, paint, maxTextWidth);
+        float textWidth = paint.measureText(ellipsizedText, 0, ellipsizedText.length());
+        float naturalTextWidth = TextUtils.equals(ellipsizedText, displayText) ? textWidth
+                : paint.measureText(displayText, 0, displayText.length());
+        ChipTextMeasureCache.Measurement measurement = new ChipTextMeasureCache.Measurement(
+                ellipsizedText, textWidth, getTextYOffset(ellipsizedText.toString(), paint, height),
+                naturalTextWidth);
+        if (key != null) {
+            mTextMeasureCache.put(key, measurement);
+        }
+        return measurement;
+    }
+
+    private CharSequence ellipsizeText(CharSequence text, TextPaint paint, float maxWidth) {
+        paint.setTextSize(mChipFontSize);
+        if (maxWidth <= 0 && Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Max width is negative: " + maxWidth);
+        }
+        return TextUtils.ellipsize(text, paint, maxWidth,
+                TextUtils.TruncateAt.END);
+    }
+
+    private static float getTextYOffset(String text, TextPaint paint, int height) {
+        Rect bounds = new Rect();
+        paint.getTextBounds(text, 0, text.length(), bounds);
+        int textHeight = bounds.bottom - bounds.top;
+        return height - ((height - textHeight) / 2) - (int) paint.descent();
+    }
+
+    /**
+     * Returns the config the chip should be rasterized with. Without a requested config, chips
+     * with an opaque background use 16 bit RGB_565, the others ARGB_8888.
+     *
+     * @param requested Config set on the view, or null to choose by the background.
+     */
+    public Bitmap.Config getBitmapConfig(RecipientEntry entry, boolean pressed,
+            Bitmap.Config requested) {
+        if (requested != null) {
+            return requested;
+        }
+        Drawable background = pressed ? mChipBackgroundPressed : getChipBackground(entry);
+        return background != null && background.getOpacity() == PixelFormat.OPAQUE
+                ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+    }
+
+    /**
+     * Paint the measured chip into a bitmap taken from the pool. Bitmaps without alpha are
+     * filled with white first, so translucent parts of the background are drawn over white.
+     */
+    public ChipBitmap rasterize(ChipLayout layout, Paint paint, ChipBitmapPool pool,
+            Bitmap.Config config) {
+        Bitmap bitmap = pool.get(layout.getWidth(), layout.getHeight(), config);
+        if (config == Bitmap.Config.RGB_565) {
+            bitmap.eraseColor(Color.WHITE);
+        }
+        Canvas canvas = new Canvas(bitmap);
+        draw(canvas, layout, paint);
+        return new ChipBitmap(bitmap, layout.getWidth(), layout.getHeight(),
+                layout.getNaturalWidth(), pool);
+    }
+
+    /**
+     * Same as {@link #draw(Canvas, ChipLayout, Paint)} with an anti-aliased paint of the painter,
+     * for chips drawn outside of the text, e.g. while dragged. Call it on the thread using the
+     * painter.
+     */
+    public void draw(Canvas canvas, ChipLayout layout) {
+        draw(canvas, layout, mPaint);
+    }
+
+    /**
+     * Paint the measured chip with its top left corner at the origin of the canvas. Text size and
+     * color of the paint are restored afterwards.
+     */
+    public void draw(Canvas canvas, ChipLayout layout, Paint paint) {
+        float defaultSize = paint.getTextSize();
+        int defaultColor = paint.getColor();
+        paint.setTextSize(mChipFontSize);
+        if (layout.isPressed()) {
+            drawSelected(canvas, layout, paint);
+        } else {
+            drawUnselected(canvas, layout, paint);
+        }
+        paint.setTextSize(defaultSize);
+        paint.setColor(defaultColor);
+    }
+
+    private void drawSelected(Canvas canvas, ChipLayout layout, Paint paint) {
+        int width = layout.getWidth();
+        int height = layout.getHeight();
+        int deleteWidth = height;
+        if (mChipBackgroundPressed != null) {
+            mChipBackgroundPressed.setBounds(0, 0, width, height);
+            mChipBackgroundPressed.draw(canvas);
+            paint.setColor(mSelectedTextColor);
+            // Vertically center the text in the chip.
+            CharSequence text = layout.getText();
+            canvas.drawText(text, 0, text.length(), mChipPadding, layout.getTextYOffset(), paint);
+            // Make the delete a square.
+            Rect backgroundPadding = new Rect();
+            mChipBackgroundPressed.getPadding(backgroundPadding);
+            mChipDelete.setBounds(width - deleteWidth + backgroundPadding.left,
+                    0 + backgroundPadding.top,
+                    width - backgroundPadding.right,
+                    height - backgroundPadding.bottom);
+            mChipDelete.draw(canvas);
+        } else {
+            Log.w(TAG, "Unable to draw a background for the chips as it was never set");
+        }
+    }
+
+    private void drawUnselected(Canvas canvas, ChipLayout layout, Paint paint) {
+        int width = layout.getWidth();
+        int height = layout.getHeight();
+        int iconWidth = height;
+        Drawable background = getChipBackground(layout.getEntry());
+        if (background != null) {
+            background.setBounds(0, 0, width, height);
+            background.draw(canvas);
+
+            if (layout.shouldDrawPhoto()) {
+                // Looked up on every draw, so chips do not keep photos alive.
+                Bitmap photo = loadPhoto(layout.getEntry());
+                // Draw the photo on the left side.
+                if (photo != null) {
+                    RectF src = new RectF(0, 0, photo.getWidth(), photo.getHeight());
+                    Rect backgroundPadding = new Rect();
+                    mChipBackground.getPadding(backgroundPadding);
+                    RectF dst = new RectF(width - iconWidth + backgroundPadding.left,
+                            0 + backgroundPadding.top,
+                            width - backgroundPadding.right,
+                            height - backgroundPadding.bottom);
+                    Matrix matrix = new Matrix();
+                    matrix.setRectToRect(src, dst, Matrix.ScaleToFit.FILL);
+                    canvas.drawBitmap(photo, matrix, paint);
+                }
+            }
+
+            paint.setColor(mTextColor);
+            // Vertically center the text in the chip.
+            CharSequence text = layout.getText();
+            canvas.drawText(text, 0, text.length(), mChipPadding, layout.getTextYOffset(), paint);
+        } else {
+            Log.w(TAG, "Unable to draw a background for the chips as it was never set");
+        }
+    }
+
+    private Bitmap loadPhoto(RecipientEntry contact) {
+        // There may not be a photo yet if anything but the first contact address
+        // was selected.
+        // TODO: implement fetching of photo
+        // getAdapter().fetchPhoto(contact, contact.getContactId());
+        Bitmap photo = mPhotoCache.getPhoto(contact, (int) mChipHeight);
+        return photo != null ? photo : getDefaultPhoto();
+    }
+
+    private synchronized Bitmap getDefaultPhoto() {
+        if (mScaledDefaultContactPhoto == null && mDefaultContactPhoto != null) {
+            int size = (int) mChipHeight;
+            if (size > 0 && mDefaultContactPhoto.getWidth() > size
+                    && mDefaultContactPhoto.getHeight() > size) {
+                mScaledDefaultContactPhoto = Bitmap.createScaledBitmap(mDefaultContactPhoto,
+                        size, size, true);
+            } else {
+                mScaledDefaultContactPhoto = mDefaultContactPhoto;
+            }
+        }
+        return mScaledDefaultContactPhoto;
+    }
+
+    /**
+     * Get the background drawable for a RecipientChip.
+     */
+    public Drawable getChipBackground(RecipientEntry contact) {
+        return contact.isValid() ? mChipBackground : mInvalidChipBackground;
+    }
+}
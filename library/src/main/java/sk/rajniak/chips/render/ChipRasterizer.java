@@ -0,0 +1,147 @@
+package sk.rajniak.chips.render;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.text.TextPaint;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rasterizes measured chips on a background thread.
+ *
+ * Chips are measured on the UI thread and shown as placeholder {@link ChipDrawable}s. Bitmap and
+ * Canvas work is done by a worker with its own copy of the {@link ChipPainter}, finished bitmaps
+ * are handed to the drawables on the UI thread in batches, so the UI thread only swaps pixels in
+ * and invalidates once per batch.
+ */
+public class ChipRasterizer {
+
+    /**
+     * Number of chips handed over to the UI thread at once.
+     */
+    private static final int BATCH_SIZE = 8;
+
+    private static final long KEEP_ALIVE_SECONDS = 1;
+
+    private static Executor sExecutor;
+
+    private final ChipPainter mPainter;
+
+    private final ChipBitmapPool mPool;
+
+    private final Callback mCallback;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Notified on the UI thread after a batch of drawables received their bitmaps.
+     */
+    public interface Callback {
+        void onChipsRasterized(List<Job> jobs);
+    }
+
+    /**
+     * @param painter Painter of the UI thread, the worker paints with a copy of it.
+     */
+    public ChipRasterizer(ChipPainter painter, ChipBitmapPool pool, Callback callback) {
+        mPainter = painter.copy();
+        mPool = pool;
+        mCallback = callback;
+    }
+
+    private static synchronized Executor getExecutor() {
+        if (sExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "ChipRasterizer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            executor.allowCoreThreadTimeOut(true);
+            sExecutor = executor;
+        }
+        return sExecutor;
+    }
+
+    /**
+     * Rasterize the chips on the worker.
+     *
+     * @param paint Paint to draw with. It is owned by the worker from now on, so pass a copy of
+     * the paint of the view.
+     */
+    public void rasterize(final List<Job> jobs, final TextPaint paint) {
+        if (jobs.isEmpty()) {
+            return;
+        }
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                ArrayList<Job> batch = new ArrayList<>(BATCH_SIZE);
+                for (Job job : jobs) {
+                    job.mChipBitmap = mPainter.rasterize(job.mDrawable.getLayout(), paint,
+                            mPool, job.mDrawable.getKey().getConfig());
+                    batch.add(job);
+                    if (batch.size() == BATCH_SIZE) {
+                        deliver(batch);
+                        batch = new ArrayList<>(BATCH_SIZE);
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    deliver(batch);
+                }
+            }
+        });
+    }
+
+    private void deliver(final List<Job> batch) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Job job : batch) {
+                    job.mDrawable.setChipBitmap(job.mChipBitmap);
+                }
+                mCallback.onChipsRasterized(batch);
+            }
+        });
+    }
+
+    /**
+     * Chip waiting for its pixels.
+     */
+    public static final class Job {
+        private final ChipDrawable mDrawable;
+
+        private ChipBitmap mChipBitmap;
+
+        /**
+         * @param drawable Placeholder drawable receiving the bitmap. It is rasterized from its
+         * layout with the config of its key, the layout must not be used by the UI thread.
+         */
+        public Job(ChipDrawable drawable) {
+            mDrawable = drawable;
+            drawable.setRasterizing();
+        }
+
+        public ChipBitmapCache.Key getKey() {
+            return mDrawable.getKey();
+        }
+
+        /**
+         * Returns the rasterized chip, null until the job is delivered.
+         */
+        public ChipBitmap getChipBitmap() {
+            return mChipBitmap;
+        }
+    }
+}
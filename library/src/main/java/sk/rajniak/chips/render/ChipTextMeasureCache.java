@@ -0,0 +1,157 @@
+package sk.rajniak.chips.render;
+
+import android.graphics.Typeface;
+import android.support.v4.util.LruCache;
+
+/**
+ * Cache of measured chip labels.
+ *
+ * Ellipsizing and measuring a label only depends on the label, the font and the space the chip
+ * may take up, so chips rendered again with a known label skip text measurement entirely.
+ */
+public class ChipTextMeasureCache {
+
+    private static final int DEFAULT_MAX_ENTRIES = 256;
+
+    private final LruCache<Key, Measurement> mCache;
+
+    public ChipTextMeasureCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param maxEntries Number of labels kept.
+     */
+    public ChipTextMeasureCache(int maxEntries) {
+        mCache = new LruCache<>(maxEntries);
+    }
+
+    /**
+     * Returns measurement of the label or null if it was not measured yet.
+     */
+    public Measurement get(Key key) {
+        return mCache.get(key);
+    }
+
+    public void put(Key key, Measurement measurement) {
+        mCache.put(key, measurement);
+    }
+
+    public void evictAll() {
+        mCache.evictAll();
+    }
+
+    /**
+     * Returns the number of cached labels.
+     */
+    public int size() {
+        return mCache.size();
+    }
+
+    public int hitCount() {
+        return mCache.hitCount();
+    }
+
+    public int missCount() {
+        return mCache.missCount();
+    }
+
+    @Override
+    public String toString() {
+        return "ChipTextMeasureCache[size=" + size() + ",hits=" + hitCount() + ",misses="
+                + missCount() + "]";
+    }
+
+    /**
+     * Result of measuring a label.
+     */
+    public static final class Measurement {
+        private final CharSequence mText;
+
+        private final float mTextWidth;
+
+        private final float mTextYOffset;
+
+        private final float mNaturalTextWidth;
+
+        public Measurement(CharSequence text, float textWidth, float textYOffset,
+                float naturalTextWidth) {
+            mText = text;
+            mTextWidth = textWidth;
+            mTextYOffset = textYOffset;
+            mNaturalTextWidth = naturalTextWidth;
+        }
+
+        /**
+         * Get the ellipsized label.
+         */
+        public CharSequence getText() {
+            return mText;
+        }
+
+        /**
+         * Get the width of the ellipsized label.
+         */
+        public float getTextWidth() {
+            return mTextWidth;
+        }
+
+        /**
+         * Get the baseline of the label, relative to the top of the chip.
+         */
+        public float getTextYOffset() {
+            return mTextYOffset;
+        }
+
+        /**
+         * Get the width of the whole label, without ellipsis.
+         */
+        public float getNaturalTextWidth() {
+            return mNaturalTextWidth;
+        }
+    }
+
+    /**
+     * Identifies measurement by the label, the font and the available width.
+     */
+    public static final class Key {
+        private final String mLabel;
+
+        private final float mTextSize;
+
+        private final float mMaxWidth;
+
+        private final Typeface mTypeface;
+
+        public Key(CharSequence label, float textSize, float maxWidth, Typeface typeface) {
+            mLabel = label.toString();
+            mTextSize = textSize;
+            mMaxWidth = maxWidth;
+            mTypeface = typeface;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return Float.compare(mTextSize, other.mTextSize) == 0
+                    && Float.compare(mMaxWidth, other.mMaxWidth) == 0
+                    && mTypeface == other.mTypeface
+                    && mLabel.equals(other.mLabel);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = mLabel.hashCode();
+            result = 31 * result + Float.floatToIntBits(mTextSize);
+            result = 31 * result + Float.floatToIntBits(mMaxWidth);
+            result = 31 * result + (mTypeface != null ? mTypeface.hashCode() : 0);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package sk.rajniak.chips.render;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.support.v4.util.LruCache;
+
+import sk.rajniak.chips.model.RecipientEntry;
+
+/**
+ * Memory bounded cache of decoded contact photos, keyed by contact and the size the photo is
+ * shown at.
+ *
+ * Photos are decoded with {@link BitmapFactory.Options#inSampleSize} so that the bitmap is not much
+ * bigger than the chip or the dropdown row icon it is drawn into. The default instance is shared by
+ * the dropdown, the alternates popup and chip rendering.
+ */
+public class PhotoCache {
+
+    /**
+     * Fraction of the maximum heap used as the default byte budget.
+     */
+    private static final int DEFAULT_HEAP_FRACTION = 32;
+
+    private static PhotoCache sInstance;
+
+    private final LruCache<Key, Bitmap> mCache;
+
+    public PhotoCache() {
+        this((int) Math.min(Integer.MAX_VALUE,
+                Runtime.getRuntime().maxMemory() / DEFAULT_HEAP_FRACTION));
+    }
+
+    /**
+     * @param maxBytes Byte budget for all decoded photos together.
+     */
+    public PhotoCache(int maxBytes) {
+        mCache = new LruCache<Key, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(Key key, Bitmap value) {
+                return ChipBitmapCache.getByteCount(value);
+            }
+        };
+    }
+
+    /**
+     * Returns the instance shared by all adapters and chips that were not given their own.
+     */
+    public static synchronized PhotoCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new PhotoCache();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns photo of the recipient decoded to roughly the target size, or null if the recipient
+     * has no photo.
+     *
+     * @param targetSize Size in pixels of the square the photo is drawn into.
+     */
+    public Bitmap getPhoto(RecipientEntry entry, int targetSize) {
+        final byte[] photoBytes = entry.getPhotoBytes();
+        if (photoBytes == null) {
+            return null;
+        }
+        // Created recipients share their contact id, their photos are told apart by the bytes.
+        final Object photoId = RecipientEntry.isCreatedRecipient(entry.getContactId())
+                ? photoBytes : Long.valueOf(entry.getContactId());
+        final Key key = new Key(photoId, targetSize);
+        Bitmap photo = mCache.get(key);
+        if (photo == null) {
+            photo = decodePhoto(photoBytes, targetSize);
+            if (photo != null) {
+                mCache.put(key, photo);
+            }
+        }
+        return photo;
+    }
+
+    /**
+     * Drops all decoded photos, e.g. when contact photos have changed.
+     */
+    public void evictAll() {
+        mCache.evictAll();
+    }
+
+    public int size() {
+        return mCache.size();
+    }
+
+    public int maxSize() {
+        return mCache.maxSize();
+    }
+
+    public int hitCount() {
+        return mCache.hitCount();
+    }
+
+    public int missCount() {
+        return mCache.missCount();
+    }
+
+    /**
+     * Decode photo, skipping as many pixels as possible while keeping it at least as big as the
+     * target size.
+     */
+    static Bitmap decodePhoto(byte[] photoBytes, int targetSize) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(photoBytes, 0, photoBytes.length, options);
+        options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight,
+                targetSize);
+        options.inJustDecodeBounds = false;
+        return BitmapFactory.decodeByteArray(photoBytes, 0, photoBytes.length, options);
+    }
+
+    static int calculateInSampleSize(int width, int height, int targetSize) {
+        int inSampleSize = 1;
+        if (targetSize <= 0) {
+            return inSampleSize;
+        }
+        // Decoder only honours powers of two.
+        while (width / (inSampleSize * 2) >= targetSize
+                && height / (inSampleSize * 2) >= targetSize) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    private static final class Key {
+        private final Object mPhotoId;
+
+        private final int mSize;
+
+        Key(Object photoId, int size) {
+            mPhotoId = photoId;
+            mSize = size;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return mPhotoId.equals(other.mPhotoId) && mSize == other.mSize;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * mPhotoId.hashCode() + mSize;
+        }
+    }
+}
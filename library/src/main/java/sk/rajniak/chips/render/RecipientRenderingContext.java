@@ -0,0 +1,180 @@
+package sk.rajniak.chips.render;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.content.res.TypedArray;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.Drawable;
+import android.util.AttributeSet;
+
+import sk.rajniak.chips.R;
+
+/**
+ * Chip rendering resources that several recipient fields can share, e.g. To, Cc and Bcc of one
+ * compose screen.
+ *
+ * Holds the chip dimensions, the painter with the decoded chip drawables and default photo, and
+ * the caches of rendered chips, measured labels and photos. Drawables are decoded when the first
+ * chip is rendered, so a field that is attached to a shared context right after inflation never
+ * decodes its own.
+ */
+public class RecipientRenderingContext {
+
+    private final Resources mResources;
+
+    private final int mChipBackgroundId;
+
+    private final int mChipBackgroundPressedId;
+
+    private final int mInvalidChipBackgroundId;
+
+    private final int mChipDeleteId;
+
+    private final int mChipPadding;
+
+    private final float mChipHeight;
+
+    private final float mChipFontSize;
+
+    private final int mTextColor;
+
+    private final int mSelectedTextColor;
+
+    private ChipPainter mChipPainter;
+
+    private ChipBitmapCache mChipBitmapCache = new ChipBitmapCache();
+
+    private final ChipBitmapPool mChipBitmapPool = new ChipBitmapPool();
+
+    private final ChipTextMeasureCache mChipTextMeasureCache = new ChipTextMeasureCache();
+
+    private PhotoCache mPhotoCache = PhotoCache.getInstance();
+
+    /**
+     * Creates context with the default chip resources.
+     */
+    public RecipientRenderingContext(Context context) {
+        this(context, null);
+    }
+
+    /**
+     * Creates context with chip resources of the RecipientEditTextView attributes.
+     */
+    public RecipientRenderingContext(Context context, AttributeSet attrs) {
+        TypedArray a = context.obtainStyledAttributes(attrs, R.styleable.RecipientEditTextView, 0,
+                0);
+        Resources r = context.getResources();
+        mResources = r;
+
+        mChipBackgroundId = a.getResourceId(R.styleable.RecipientEditTextView_chipBackground,
+                R.drawable.chip_background);
+        mChipBackgroundPressedId = a.getResourceId(
+                R.styleable.RecipientEditTextView_chipBackgroundPressed,
+                R.drawable.chip_background_selected);
+        mInvalidChipBackgroundId = a.getResourceId(
+                R.styleable.RecipientEditTextView_invalidChipBackground,
+                R.drawable.chip_background_invalid);
+        mChipDeleteId = a.getResourceId(R.styleable.RecipientEditTextView_chipDelete,
+                R.drawable.chip_delete);
+
+        int chipPadding = a.getDimensionPixelSize(R.styleable.RecipientEditTextView_chipPadding,
+                -1);
+        if (chipPadding == -1) {
+            chipPadding = (int) r.getDimension(R.dimen.chip_padding);
+        }
+        mChipPadding = chipPadding;
+        float chipHeight = a.getDimensionPixelSize(R.styleable.RecipientEditTextView_chipHeight,
+                -1);
+        if (chipHeight == -1) {
+            chipHeight = r.getDimension(R.dimen.chip_height);
+        }
+        mChipHeight = chipHeight;
+        float chipFontSize = a.getDimensionPixelSize(
+                R.styleable.RecipientEditTextView_chipFontSize, -1);
+        if (chipFontSize == -1) {
+            chipFontSize = r.getDimension(R.dimen.chip_text_size);
+        }
+        mChipFontSize = chipFontSize;
+        a.recycle();
+
+        mTextColor = r.getColor(android.R.color.black);
+        mSelectedTextColor = r.getColor(android.R.color.white);
+    }
+
+    public int getChipPadding() {
+        return mChipPadding;
+    }
+
+    public float getChipHeight() {
+        return mChipHeight;
+    }
+
+    public float getChipFontSize() {
+        return mChipFontSize;
+    }
+
+    /**
+     * Returns the painter, decoding the chip drawables on first use.
+     */
+    public synchronized ChipPainter getChipPainter() {
+        if (mChipPainter == null) {
+            Drawable chipBackground = mResources.getDrawable(mChipBackgroundId);
+            Drawable chipBackgroundPressed = mResources.getDrawable(mChipBackgroundPressedId);
+            Drawable invalidChipBackground = mResources.getDrawable(mInvalidChipBackgroundId);
+            Drawable chipDelete = mResources.getDrawable(mChipDeleteId);
+            Bitmap defaultContactPhoto = BitmapFactory.decodeResource(mResources,
+                    R.drawable.ic_contact_picture);
+            mChipPainter = new ChipPainter(chipBackground, chipBackgroundPressed,
+                    invalidChipBackground, chipDelete, defaultContactPhoto, mChipPadding,
+                    mChipHeight, mChipFontSize, mTextColor, mSelectedTextColor);
+            mChipPainter.setTextMeasureCache(mChipTextMeasureCache);
+            mChipPainter.setPhotoCache(mPhotoCache);
+        }
+        return mChipPainter;
+    }
+
+    /**
+     * Returns the cache of rendered chip bitmaps, e.g. to inspect its hit, miss and eviction
+     * counters.
+     */
+    public ChipBitmapCache getChipBitmapCache() {
+        return mChipBitmapCache;
+    }
+
+    /**
+     * Sets the byte budget of the rendered chip bitmap cache. Already cached bitmaps are dropped.
+     */
+    public void setChipBitmapCacheSize(int maxBytes) {
+        mChipBitmapCache.evictAll();
+        mChipBitmapCache = new ChipBitmapCache(maxBytes);
+    }
+
+    /**
+     * Returns the pool of bitmaps of removed chips, e.g. to inspect its hit and miss counters.
+     */
+    public ChipBitmapPool getChipBitmapPool() {
+        return mChipBitmapPool;
+    }
+
+    /**
+     * Returns the cache of measured chip labels.
+     */
+    public ChipTextMeasureCache getChipTextMeasureCache() {
+        return mChipTextMeasureCache;
+    }
+
+    public PhotoCache getPhotoCache() {
+        return mPhotoCache;
+    }
+
+    /**
+     * Sets the cache contact photos of chips are decoded into.
+     */
+    public synchronized void setPhotoCache(PhotoCache photoCache) {
+        mPhotoCache = photoCache;
+        if (mChipPainter != null) {
+            mChipPainter.setPhotoCache(photoCache);
+        }
+    }
+}
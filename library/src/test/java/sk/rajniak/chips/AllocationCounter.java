@@ -0,0 +1,50 @@
+package sk.rajniak.chips;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Counts the bytes a piece of code allocates on the calling thread, on JVMs able to tell.
+ */
+public final class AllocationCounter {
+
+    private static final int WARM_UP_RUNS = 10000;
+
+    private AllocationCounter() {
+    }
+
+    public static boolean isSupported() {
+        final Object bean = ManagementFactory.getThreadMXBean();
+        return bean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()
+                && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemoryEnabled();
+    }
+
+    /**
+     * Returns the bytes allocated by running the code the given number of times, not counting
+     * what measuring takes. The code runs as often beforehand, so one-off allocations such as
+     * growing a reused buffer are not counted.
+     */
+    public static long allocatedBytes(Runnable code, int runs) {
+        final Runnable nothing = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+        for (int i = 0; i < Math.max(runs, WARM_UP_RUNS); i++) {
+            code.run();
+            nothing.run();
+        }
+        return measure(code, runs) - measure(nothing, runs);
+    }
+
+    private static long measure(Runnable code, int runs) {
+        final com.sun.management.ThreadMXBean bean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long threadId = Thread.currentThread().getId();
+        final long before = bean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < runs; i++) {
+            code.run();
+        }
+        return bean.getThreadAllocatedBytes(threadId) - before;
+    }
+}
@@ -0,0 +1,151 @@
+package sk.rajniak.chips;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.widget.MultiAutoCompleteTextView;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import sk.rajniak.chips.model.BaseRecipientAdapter;
+import sk.rajniak.chips.model.RecipientEntry;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Typing into the field runs the token scan and the filter request on every keystroke, neither
+ * may allocate however long the text is.
+ */
+public class KeystrokeAllocationTest {
+
+    private static final int KEYSTROKES = 10000;
+
+    private final StringBuilder mText = new StringBuilder();
+
+    private MultiAutoCompleteTextView.Tokenizer mTokenizer;
+
+    @Before
+    public void setUp() {
+        for (int i = 0; i < 200; i++) {
+            mText.append("recipient").append(i).append("@example.com, ");
+        }
+        mText.append("jo");
+        mTokenizer = new CommaTokenizer();
+    }
+
+    @Test
+    public void isCompletedTokenChecksLastToken() {
+        assertFalse(RecipientEditTextView.isCompletedToken(mText, mTokenizer));
+        assertTrue(RecipientEditTextView.isCompletedToken("a@b.c, jo ,", mTokenizer));
+        assertTrue(RecipientEditTextView.isCompletedToken("jo;", mTokenizer));
+        assertFalse(RecipientEditTextView.isCompletedToken("", mTokenizer));
+    }
+
+    @Test
+    public void isCompletedTokenDoesNotAllocate() {
+        assumeTrue(AllocationCounter.isSupported());
+        final long allocated = AllocationCounter.allocatedBytes(new Runnable() {
+            @Override
+            public void run() {
+                RecipientEditTextView.isCompletedToken(mText, mTokenizer);
+            }
+        }, KEYSTROKES);
+        assertNoAllocations(allocated);
+    }
+
+    @Test
+    public void filterRequestsDoNotAllocate() {
+        assumeTrue(AllocationCounter.isSupported());
+        final BaseRecipientAdapter adapter = new TestAdapter(mockContext());
+        final int end = mText.length();
+        final int start = end - 2;
+        final long allocated = AllocationCounter.allocatedBytes(new Runnable() {
+            @Override
+            public void run() {
+                adapter.cancelFiltering();
+                adapter.requestFiltering(mText, start, end);
+            }
+        }, KEYSTROKES);
+        assertNoAllocations(allocated);
+    }
+
+    private static void assertNoAllocations(long allocated) {
+        // Any allocation takes more than a byte, so a per-keystroke one would add up to more.
+        assertTrue("keystrokes allocated " + allocated + " bytes", allocated < KEYSTROKES);
+    }
+
+    private static Context mockContext() {
+        final Context context = mock(Context.class);
+        when(context.getResources()).thenReturn(mock(Resources.class));
+        return context;
+    }
+
+    private static final class CommaTokenizer implements MultiAutoCompleteTextView.Tokenizer {
+
+        @Override
+        public int findTokenStart(CharSequence text, int cursor) {
+            // Like Rfc822Tokenizer, a separator ending the text stays in the token it ends.
+            int best = 0;
+            int i = 0;
+            while (i < cursor) {
+                i = findTokenEnd(text, i);
+                if (i < cursor) {
+                    i++;
+                    while (i < cursor && text.charAt(i) == ' ') {
+                        i++;
+                    }
+                    if (i < cursor) {
+                        best = i;
+                    }
+                }
+            }
+            return best;
+        }
+
+        @Override
+        public int findTokenEnd(CharSequence text, int cursor) {
+            int i = cursor;
+            while (i < text.length() && text.charAt(i) != ',' && text.charAt(i) != ';') {
+                i++;
+            }
+            return i;
+        }
+
+        @Override
+        public CharSequence terminateToken(CharSequence text) {
+            return text + ", ";
+        }
+    }
+
+    private static final class TestAdapter extends BaseRecipientAdapter {
+
+        TestAdapter(Context context) {
+            super(context);
+        }
+
+        @Override
+        public List<RecipientEntry> getAlternativeRecipients(String displayName) {
+            return null;
+        }
+
+        @Override
+        public HashMap<String, List<RecipientEntry>> getAlternativeRecipients(
+                HashSet<String> displayNames) {
+            return null;
+        }
+
+        @Override
+        protected HashMap<String, List<RecipientEntry>> getMatchingRecipients(
+                CharSequence constraint) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package sk.rajniak.chips;
+
+import android.text.Spanned;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import sk.rajniak.chips.model.RecipientEntry;
+import sk.rajniak.chips.recipientchip.DrawableRecipientChip;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class RecipientChipIndexTest {
+
+    private TestSpannable mText;
+
+    private RecipientChipIndex mIndex;
+
+    @Before
+    public void setUp() {
+        mText = new TestSpannable("alice, bob, carol, dave, erin, frank, ");
+        mIndex = new RecipientChipIndex();
+        mIndex.attach(mText);
+    }
+
+    @Test
+    public void chipsAddedOutOfOrderAreOrderedByOffset() {
+        DrawableRecipientChip carol = addChip(12, 17);
+        DrawableRecipientChip alice = addChip(0, 5);
+        DrawableRecipientChip bob = addChip(7, 10);
+
+        assertArrayEquals(new DrawableRecipientChip[] {alice, bob, carol}, mIndex.getChips());
+        assertSame(bob, mIndex.get(1));
+        assertSame(carol, mIndex.getLastChip());
+        assertEquals(3, mIndex.size());
+    }
+
+    @Test
+    public void chipsAlreadyInTextAreIndexedOnAttach() {
+        DrawableRecipientChip bob = addChip(7, 10);
+        DrawableRecipientChip alice = addChip(0, 5);
+
+        RecipientChipIndex index = new RecipientChipIndex();
+        index.attach(mText);
+        assertArrayEquals(new DrawableRecipientChip[] {alice, bob}, index.getChips());
+    }
+
+    @Test
+    public void findChipMatchesOffsetsWithinChipIncludingEnd() {
+        DrawableRecipientChip alice = addChip(0, 5);
+        DrawableRecipientChip bob = addChip(7, 10);
+
+        assertSame(alice, mIndex.findChip(0));
+        assertSame(alice, mIndex.findChip(5));
+        assertNull(mIndex.findChip(6));
+        assertSame(bob, mIndex.findChip(8));
+        assertNull(mIndex.findChip(20));
+        assertSame(alice, mIndex.findChipBefore(6));
+        assertSame(bob, mIndex.findChipBefore(20));
+    }
+
+    @Test
+    public void findChipWithoutChips() {
+        assertNull(mIndex.findChip(0));
+        assertNull(mIndex.findChipBefore(10));
+        assertNull(mIndex.getLastChip());
+    }
+
+    @Test
+    public void ceilingIndexFindsFirstChipAtOrAfterOffset() {
+        addChip(0, 5);
+        addChip(7, 10);
+        addChip(12, 17);
+
+        assertEquals(0, mIndex.ceilingIndex(0));
+        assertEquals(1, mIndex.ceilingIndex(1));
+        assertEquals(1, mIndex.ceilingIndex(7));
+        assertEquals(2, mIndex.ceilingIndex(11));
+        assertEquals(3, mIndex.ceilingIndex(13));
+    }
+
+    @Test
+    public void resizedChipIsOrderedAgain() {
+        DrawableRecipientChip alice = addChip(0, 5);
+        DrawableRecipientChip bob = addChip(7, 10);
+        DrawableRecipientChip carol = addChip(12, 17);
+        int version = mIndex.getVersion();
+
+        mText.setSpan(carol, 6, 7, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        assertNotEquals(version, mIndex.getVersion());
+        assertArrayEquals(new DrawableRecipientChip[] {alice, carol, bob}, mIndex.getChips());
+    }
+
+    @Test
+    public void shiftedChipKeepsVersion() {
+        DrawableRecipientChip alice = addChip(0, 5);
+        int version = mIndex.getVersion();
+
+        mText.setSpan(alice, 1, 6, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        assertEquals(version, mIndex.getVersion());
+    }
+
+    @Test
+    public void removedChipLeavesIndex() {
+        DrawableRecipientChip alice = addChip(0, 5);
+        DrawableRecipientChip bob = addChip(7, 10);
+        int version = mIndex.getVersion();
+
+        mText.removeSpan(alice);
+        assertNotEquals(version, mIndex.getVersion());
+        assertArrayEquals(new DrawableRecipientChip[] {bob}, mIndex.getChips());
+        assertNull(mIndex.findChip(2));
+    }
+
+    @Test
+    public void chipsChangedInBatchEditAreCollectedOnce() {
+        DrawableRecipientChip alice = addChip(0, 5);
+        DrawableRecipientChip bob = addChip(7, 10);
+        int version = mIndex.getVersion();
+
+        mIndex.beginBatchEdit();
+        mText.removeSpan(bob);
+        DrawableRecipientChip bobReplacement = addChip(7, 10);
+        mText.removeSpan(alice);
+        DrawableRecipientChip aliceReplacement = addChip(0, 5);
+        mIndex.endBatchEdit();
+
+        assertNotEquals(version, mIndex.getVersion());
+        assertEquals(2, mIndex.size());
+        assertArrayEquals(new DrawableRecipientChip[] {aliceReplacement, bobReplacement},
+                mIndex.getChips());
+        assertSame(bobReplacement, mIndex.findChip(8));
+        DrawableRecipientChip carol = addChip(12, 17);
+        assertSame(carol, mIndex.getLastChip());
+    }
+
+    @Test
+    public void otherSpansAreIgnored() {
+        addChip(0, 5);
+        int version = mIndex.getVersion();
+
+        mText.setSpan(new Object(), 0, 5, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        assertEquals(version, mIndex.getVersion());
+        assertEquals(1, mIndex.size());
+    }
+
+    private DrawableRecipientChip addChip(int start, int end) {
+        // Without a destination the chip stays out of the destination index.
+        DrawableRecipientChip chip = mock(DrawableRecipientChip.class);
+        when(chip.getEntry()).thenReturn(mock(RecipientEntry.class));
+        mText.setSpan(chip, start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        return chip;
+    }
+}
@@ -0,0 +1,128 @@
+package sk.rajniak.chips;
+
+import android.text.SpanWatcher;
+import android.text.Spannable;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fixed text with spans, telling {@link SpanWatcher}s about span changes like the framework
+ * does. Stands in for SpannableStringBuilder, which is not available on the JVM.
+ */
+class TestSpannable implements Spannable {
+
+    private final String mText;
+
+    private final List<Object> mSpans = new ArrayList<>();
+
+    private final List<int[]> mRanges = new ArrayList<>();
+
+    TestSpannable(String text) {
+        mText = text;
+    }
+
+    @Override
+    public void setSpan(Object what, int start, int end, int flags) {
+        int index = mSpans.indexOf(what);
+        if (index >= 0) {
+            int[] range = mRanges.get(index);
+            int oldStart = range[0];
+            int oldEnd = range[1];
+            range[0] = start;
+            range[1] = end;
+            range[2] = flags;
+            for (SpanWatcher watcher : getSpans(0, length(), SpanWatcher.class)) {
+                watcher.onSpanChanged(this, what, oldStart, oldEnd, start, end);
+            }
+            return;
+        }
+        mSpans.add(what);
+        mRanges.add(new int[] {start, end, flags});
+        for (SpanWatcher watcher : getSpans(0, length(), SpanWatcher.class)) {
+            watcher.onSpanAdded(this, what, start, end);
+        }
+    }
+
+    @Override
+    public void removeSpan(Object what) {
+        int index = mSpans.indexOf(what);
+        if (index < 0) {
+            return;
+        }
+        mSpans.remove(index);
+        int[] range = mRanges.remove(index);
+        for (SpanWatcher watcher : getSpans(0, length(), SpanWatcher.class)) {
+            watcher.onSpanRemoved(this, what, range[0], range[1]);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T[] getSpans(int start, int end, Class<T> kind) {
+        List<T> spans = new ArrayList<>();
+        for (int i = 0; i < mSpans.size(); i++) {
+            int[] range = mRanges.get(i);
+            if (kind.isInstance(mSpans.get(i)) && range[0] <= end && range[1] >= start) {
+                spans.add((T) mSpans.get(i));
+            }
+        }
+        return spans.toArray((T[]) Array.newInstance(kind, spans.size()));
+    }
+
+    @Override
+    public int getSpanStart(Object tag) {
+        int index = mSpans.indexOf(tag);
+        return index >= 0 ? mRanges.get(index)[0] : -1;
+    }
+
+    @Override
+    public int getSpanEnd(Object tag) {
+        int index = mSpans.indexOf(tag);
+        return index >= 0 ? mRanges.get(index)[1] : -1;
+    }
+
+    @Override
+    public int getSpanFlags(Object tag) {
+        int index = mSpans.indexOf(tag);
+        return index >= 0 ? mRanges.get(index)[2] : 0;
+    }
+
+    @Override
+    public int nextSpanTransition(int start, int limit, Class type) {
+        int next = limit;
+        for (int i = 0; i < mSpans.size(); i++) {
+            if (type != null && !type.isInstance(mSpans.get(i))) {
+                continue;
+            }
+            for (int j = 0; j < 2; j++) {
+                int offset = mRanges.get(i)[j];
+                if (offset > start && offset < next) {
+                    next = offset;
+                }
+            }
+        }
+        return next;
+    }
+
+    @Override
+    public int length() {
+        return mText.length();
+    }
+
+    @Override
+    public char charAt(int index) {
+        return mText.charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return mText.subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        return mText;
+    }
+}
@@ -0,0 +1,171 @@
+package sk.rajniak.chips.model;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RecipientPrefixIndexTest {
+
+    private static final int LARGE_INDEX_SIZE = 100000;
+
+    private RecipientEntry mJohnSmith;
+
+    private RecipientEntry mJoanSmithers;
+
+    private RecipientEntry mBobJohnson;
+
+    private RecipientEntry mAnonymous;
+
+    private RecipientPrefixIndex mIndex;
+
+    @Before
+    public void setUp() {
+        mJohnSmith = entry("John Smith", "john.smith@example.com", 1);
+        mJoanSmithers = entry("Joan Smithers", "joan@work.org", 2);
+        mBobJohnson = entry("Bob Johnson", "bjohnson@example.com", 3);
+        mAnonymous = entry(null, "noreply@example.com", 4);
+        mIndex = new RecipientPrefixIndex(Arrays.asList(mJohnSmith, mJoanSmithers, mBobJohnson,
+                mAnonymous));
+    }
+
+    @Test
+    public void searchMatchesPrefixesOfNameWords() {
+        assertEquals(Arrays.asList(mJohnSmith, mBobJohnson), mIndex.search("john", 10));
+        assertEquals(Arrays.asList(mJohnSmith, mJoanSmithers), mIndex.search("smi", 10));
+        assertEquals(Collections.singletonList(mJoanSmithers), mIndex.search("smithe", 10));
+    }
+
+    @Test
+    public void searchMatchesDestinationParts() {
+        assertEquals(Collections.singletonList(mBobJohnson), mIndex.search("bjohn", 10));
+        assertEquals(Collections.singletonList(mJoanSmithers), mIndex.search("work", 10));
+        assertEquals(Arrays.asList(mJohnSmith, mBobJohnson, mAnonymous),
+                mIndex.search("example", 10));
+        assertEquals(Collections.singletonList(mAnonymous), mIndex.search("noreply@ex", 10));
+    }
+
+    @Test
+    public void searchIgnoresCase() {
+        assertEquals(mIndex.search("john", 10), mIndex.search("JoHN", 10));
+    }
+
+    @Test
+    public void searchNeedsEveryWordOfQuery() {
+        assertEquals(Arrays.asList(mJohnSmith, mJoanSmithers), mIndex.search("jo sm", 10));
+        assertEquals(Collections.singletonList(mJohnSmith), mIndex.search("john sm", 10));
+        assertEquals(Collections.singletonList(mJoanSmithers), mIndex.search("smithers jo", 10));
+        assertTrue(mIndex.search("john work", 10).isEmpty());
+    }
+
+    @Test
+    public void searchReturnsBestRankedFirstWithinLimit() {
+        assertEquals(Collections.singletonList(mJohnSmith), mIndex.search("example", 1));
+        assertEquals(Arrays.asList(mJohnSmith, mBobJohnson), mIndex.search("example", 2));
+    }
+
+    @Test
+    public void searchReturnsEntryOnceWhenSeveralTokensMatch() {
+        // "jo" starts the first name, the address and the local part of the address of John.
+        assertEquals(Arrays.asList(mJohnSmith, mJoanSmithers, mBobJohnson),
+                mIndex.search("jo", 10));
+    }
+
+    @Test
+    public void searchWithoutWordsFindsNothing() {
+        assertTrue(mIndex.search("", 10).isEmpty());
+        assertTrue(mIndex.search(" ,. ", 10).isEmpty());
+        assertTrue(mIndex.search("john", 0).isEmpty());
+        assertTrue(mIndex.search("zed", 10).isEmpty());
+    }
+
+    @Test
+    public void matchesAgreesWithSearch() {
+        List<RecipientEntry> entries = generateEntries(500);
+        RecipientPrefixIndex index = new RecipientPrefixIndex(entries);
+        String[] queries = {"a", "al", "ali", "b", "ca", "smi", "jo s", "example", "ex.com",
+                "mail", "x", "al sm", "qu"};
+        for (String query : queries) {
+            List<RecipientEntry> expected = new ArrayList<>();
+            for (RecipientEntry entry : entries) {
+                if (RecipientPrefixIndex.matches(entry, query)) {
+                    expected.add(entry);
+                }
+            }
+            assertEquals(query, expected, index.search(query, entries.size()));
+            int limit = Math.min(5, expected.size());
+            assertEquals(query, expected.subList(0, limit), index.search(query, 5));
+        }
+    }
+
+    @Test
+    public void searchOfLargeIndexOnlyLooksAtTokensOfRarestWord() {
+        List<RecipientEntry> entries = generateEntries(LARGE_INDEX_SIZE);
+        RecipientPrefixIndex index = new RecipientPrefixIndex(entries);
+        // Queries and the word of each starting the fewest tokens.
+        String[][] queries = {{"alb", "alb"}, {"joan q", "q"}, {"smithers", "smithers"},
+                {"carl baker", "carl"}};
+        for (String[] query : queries) {
+            int matching = 0;
+            for (RecipientEntry entry : entries) {
+                if (RecipientPrefixIndex.matches(entry, query[1])) {
+                    matching++;
+                }
+            }
+            // A generated recipient has at most three tokens starting with a name: the name
+            // word, the local part and the whole address.
+            int candidates = index.countCandidates(query[0]);
+            assertTrue(query[0] + " looks at " + candidates + " tokens",
+                    candidates >= matching && candidates <= 3 * matching);
+            assertTrue(candidates < index.getTokenCount() / 10);
+        }
+        assertEquals(0, index.countCandidates("zed"));
+        assertEquals(0, index.countCandidates(" "));
+    }
+
+    @Test
+    public void matchesChecksEveryWord() {
+        assertTrue(RecipientPrefixIndex.matches(mJohnSmith, "Smith John"));
+        assertTrue(RecipientPrefixIndex.matches(mJohnSmith, "john.smith@"));
+        assertFalse(RecipientPrefixIndex.matches(mJohnSmith, "ohn"));
+        assertFalse(RecipientPrefixIndex.matches(mJohnSmith, ""));
+    }
+
+    @Test
+    public void getByDisplayNameReturnsExactMatches() {
+        RecipientEntry otherJohn = entry("John Smith", "john@home.net", 5);
+        RecipientPrefixIndex index = new RecipientPrefixIndex(Arrays.asList(mJohnSmith,
+                mBobJohnson, otherJohn));
+        assertEquals(Arrays.asList(mJohnSmith, otherJohn), index.getByDisplayName("John Smith"));
+        assertTrue(index.getByDisplayName("John").isEmpty());
+        assertEquals(3, index.size());
+    }
+
+    private static List<RecipientEntry> generateEntries(int count) {
+        String[] firstNames = {"Alice", "Albert", "Bob", "Carol", "Carl", "John", "Joan"};
+        String[] lastNames = {"Smith", "Smithers", "Jones", "Quinn", "Baker"};
+        String[] domains = {"example.com", "mail.org", "ex.com"};
+        Random random = new Random(42);
+        List<RecipientEntry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String first = firstNames[random.nextInt(firstNames.length)];
+            String last = lastNames[random.nextInt(lastNames.length)];
+            String domain = domains[random.nextInt(domains.length)];
+            entries.add(entry(first + " " + last,
+                    first.toLowerCase() + "." + last.toLowerCase() + i + "@" + domain, i));
+        }
+        return entries;
+    }
+
+    private static RecipientEntry entry(String displayName, String destination, long id) {
+        return RecipientEntry.constructTopLevelEntry(displayName, destination, id, true);
+    }
+}
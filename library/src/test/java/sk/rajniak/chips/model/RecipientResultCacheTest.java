@@ -0,0 +1,144 @@
+package sk.rajniak.chips.model;
+
+import android.content.Context;
+import android.content.res.Resources;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class RecipientResultCacheTest {
+
+    private static final long TIME_TO_LIVE_MS = 1000;
+
+    private TestResultCache mCache;
+
+    private List<RecipientEntry> mEntries;
+
+    @Before
+    public void setUp() {
+        mCache = new TestResultCache(2, TIME_TO_LIVE_MS);
+        mEntries = Collections.singletonList(RecipientEntry.constructTopLevelEntry("John Smith",
+                "john@example.com", 1, true));
+    }
+
+    @Test
+    public void getMatchesTrimmedConstraintIgnoringCase() {
+        mCache.put("John ", mEntries);
+        assertEquals(mEntries, mCache.get("john"));
+        assertEquals(mEntries, mCache.get(" JOHN"));
+        assertNull(mCache.get("jo"));
+        assertEquals(2, mCache.hitCount());
+        assertEquals(1, mCache.missCount());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void cachedResultsCannotBeModified() {
+        List<RecipientEntry> entries = new ArrayList<>(mEntries);
+        mCache.put("john", entries);
+        mCache.get("john").clear();
+    }
+
+    @Test
+    public void resultsExpireAfterTimeToLive() {
+        mCache.put("john", mEntries);
+        mCache.mNow += TIME_TO_LIVE_MS;
+        assertEquals(mEntries, mCache.get("john"));
+
+        mCache.mNow++;
+        assertNull(mCache.get("john"));
+        assertEquals(0, mCache.size());
+        assertEquals(1, mCache.missCount());
+    }
+
+    @Test
+    public void leastRecentlyUsedConstraintIsEvicted() {
+        mCache.put("a", mEntries);
+        mCache.put("b", mEntries);
+        mCache.get("a");
+        mCache.put("c", mEntries);
+
+        assertEquals(2, mCache.size());
+        assertEquals(mEntries, mCache.get("a"));
+        assertNull(mCache.get("b"));
+        assertEquals(mEntries, mCache.get("c"));
+    }
+
+    @Test
+    public void evictAllDropsResults() {
+        mCache.put("john", mEntries);
+        mCache.evictAll();
+        assertNull(mCache.get("john"));
+        assertEquals(0, mCache.size());
+    }
+
+    @Test
+    public void hitRateCountsMisses() {
+        assertEquals(0f, mCache.getHitRate(), 0f);
+        mCache.put("john", mEntries);
+        mCache.get("john");
+        mCache.get("bob");
+        mCache.get("john");
+        mCache.get("alice");
+        assertEquals(0.5f, mCache.getHitRate(), 0f);
+    }
+
+    @Test
+    public void settingIndexOfAdapterDropsCachedResults() {
+        final IndexedRecipientAdapter adapter = new IndexedRecipientAdapter(mockContext());
+        adapter.setResultCache(mCache);
+        mCache.put("john", mEntries);
+
+        adapter.setIndex(new RecipientPrefixIndex(mEntries));
+        assertNull(mCache.get("john"));
+        assertEquals(0, mCache.size());
+    }
+
+    @Test
+    public void settingIndexOfSourceDropsCachedResults() {
+        final MultiSourceRecipientAdapter adapter = new MultiSourceRecipientAdapter(mockContext());
+        final IndexRecipientSource source =
+                new IndexRecipientSource(new RecipientPrefixIndex(mEntries));
+        adapter.addSource(source);
+        adapter.setResultCache(mCache);
+        mCache.put("john", mEntries);
+
+        source.setIndex(new RecipientPrefixIndex(Collections.<RecipientEntry>emptyList()));
+        assertNull(mCache.get("john"));
+        assertEquals(0, mCache.size());
+
+        // A removed source no longer touches the results of the adapter.
+        adapter.removeSource(source);
+        mCache.put("john", mEntries);
+        source.setIndex(new RecipientPrefixIndex(mEntries));
+        assertEquals(mEntries, mCache.get("john"));
+    }
+
+    private static Context mockContext() {
+        final Context context = mock(Context.class);
+        when(context.getResources()).thenReturn(mock(Resources.class));
+        return context;
+    }
+
+    private static class TestResultCache extends RecipientResultCache {
+
+        long mNow = 100000;
+
+        TestResultCache(int maxEntries, long timeToLiveMillis) {
+            super(maxEntries, timeToLiveMillis);
+        }
+
+        @Override
+        long now() {
+            return mNow;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package sk.rajniak.chips.render;
+
+import android.graphics.Bitmap;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ChipBitmapPoolTest {
+
+    private static final int BYTES_PER_PIXEL = 4;
+
+    @Test
+    public void bucketWidthRoundsUpToBucket() {
+        assertEquals(ChipBitmapPool.WIDTH_BUCKET, ChipBitmapPool.bucketWidth(1));
+        assertEquals(ChipBitmapPool.WIDTH_BUCKET,
+                ChipBitmapPool.bucketWidth(ChipBitmapPool.WIDTH_BUCKET));
+        assertEquals(2 * ChipBitmapPool.WIDTH_BUCKET,
+                ChipBitmapPool.bucketWidth(ChipBitmapPool.WIDTH_BUCKET + 1));
+        assertEquals(0, ChipBitmapPool.bucketWidth(0));
+    }
+
+    @Test
+    public void getReusesBitmapOfSameBucket() {
+        ChipBitmapPool pool = new ChipBitmapPool(Integer.MAX_VALUE);
+        Bitmap bitmap = mockBitmap(64, 20, Bitmap.Config.ARGB_8888);
+        pool.put(bitmap);
+        assertEquals(64 * 20 * BYTES_PER_PIXEL, pool.size());
+
+        assertSame(bitmap, pool.get(40, 20, Bitmap.Config.ARGB_8888));
+        assertEquals(1, pool.hitCount());
+        assertEquals(0, pool.size());
+        verify(bitmap).eraseColor(0);
+    }
+
+    @Test
+    public void getMissesOtherBuckets() {
+        ChipBitmapPool pool = new ChipBitmapPool(Integer.MAX_VALUE);
+        Bitmap bitmap = mockBitmap(64, 20, Bitmap.Config.ARGB_8888);
+        pool.put(bitmap);
+
+        assertNotSame(bitmap, pool.get(65, 20, Bitmap.Config.ARGB_8888));
+        assertNotSame(bitmap, pool.get(64, 21, Bitmap.Config.ARGB_8888));
+        assertNotSame(bitmap, pool.get(64, 20, Bitmap.Config.RGB_565));
+        assertEquals(0, pool.hitCount());
+        assertEquals(3, pool.missCount());
+        assertSame(bitmap, pool.get(64, 20, Bitmap.Config.ARGB_8888));
+    }
+
+    @Test
+    public void putIgnoresBitmapsOutsideBucketWidths() {
+        ChipBitmapPool pool = new ChipBitmapPool(Integer.MAX_VALUE);
+        pool.put(mockBitmap(50, 20, Bitmap.Config.ARGB_8888));
+        assertEquals(0, pool.size());
+    }
+
+    @Test
+    public void putKeepsWithinBudget() {
+        int bitmapBytes = 32 * 20 * BYTES_PER_PIXEL;
+        ChipBitmapPool pool = new ChipBitmapPool(bitmapBytes * 2);
+        pool.put(mockBitmap(32, 20, Bitmap.Config.ARGB_8888));
+        pool.put(mockBitmap(32, 20, Bitmap.Config.ARGB_8888));
+        pool.put(mockBitmap(32, 20, Bitmap.Config.ARGB_8888));
+        assertEquals(bitmapBytes * 2, pool.size());
+
+        pool.clear();
+        assertEquals(0, pool.size());
+    }
+
+    @Test
+    public void putIgnoresImmutableAndRecycledBitmaps() {
+        ChipBitmapPool pool = new ChipBitmapPool(Integer.MAX_VALUE);
+        Bitmap immutable = mockBitmap(32, 20, Bitmap.Config.ARGB_8888);
+        when(immutable.isMutable()).thenReturn(false);
+        Bitmap recycled = mockBitmap(32, 20, Bitmap.Config.ARGB_8888);
+        when(recycled.isRecycled()).thenReturn(true);
+        pool.put(immutable);
+        pool.put(recycled);
+        pool.put(null);
+        assertEquals(0, pool.size());
+    }
+
+    private static Bitmap mockBitmap(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = mock(Bitmap.class);
+        when(bitmap.getWidth()).thenReturn(width);
+        when(bitmap.getHeight()).thenReturn(height);
+        when(bitmap.getConfig()).thenReturn(config);
+        when(bitmap.getRowBytes()).thenReturn(width * BYTES_PER_PIXEL);
+        when(bitmap.isMutable()).thenReturn(true);
+        return bitmap;
+    }
+}
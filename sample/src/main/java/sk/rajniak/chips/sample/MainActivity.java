@@ -1,22 +1,35 @@
 package sk.rajniak.chips.sample;
 
 import android.support.v7.app.ActionBarActivity;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.text.util.Rfc822Tokenizer;
+import android.util.Log;
 import android.view.View;
 import android.widget.Button;
+import android.widget.TextView;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 
 import sk.rajniak.chips.RecipientEditTextView;
 import sk.rajniak.chips.model.BaseRecipientAdapter;
+import sk.rajniak.chips.model.CancellationToken;
+import sk.rajniak.chips.model.IndexRecipientSource;
+import sk.rajniak.chips.model.MultiSourceRecipientAdapter;
 import sk.rajniak.chips.model.RecipientEntry;
+import sk.rajniak.chips.model.RecipientPrefixIndex;
+import sk.rajniak.chips.model.RecipientSource;
 
 public class MainActivity extends ActionBarActivity {
 
+    private static final String TAG = "MainActivity";
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -24,6 +37,11 @@ public class MainActivity extends ActionBarActivity {
 
         final RecipientEditTextView recipientTv = (RecipientEditTextView) findViewById(R.id.recipient_tv);
         recipientTv.setTokenizer(new Rfc822Tokenizer());
+        // Both fields render chips the same way, so they can share resources and caches.
+        final RecipientEditTextView focusTv = (RecipientEditTextView) findViewById(R.id.focus_tv);
+        focusTv.setRenderingContext(recipientTv.getRenderingContext());
+        focusTv.setTokenizer(new Rfc822Tokenizer());
+        focusTv.setAdapter(createMultiSourceAdapter());
         recipientTv.setAdapter(new BaseRecipientAdapter(this){
 
             @Override
@@ -73,5 +91,60 @@ public class MainActivity extends ActionBarActivity {
                 recipientTv.append("test1");
             }
         });
+
+        final TextView benchmarkResult = (TextView) findViewById(R.id.benchmark_result);
+        final Button benchmarkButton = (Button) findViewById(R.id.benchmark);
+        benchmarkButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                benchmarkButton.setEnabled(false);
+                benchmarkResult.setText(R.string.benchmark_running);
+                new AsyncTask<Void, Void, String>() {
+                    @Override
+                    protected String doInBackground(Void... params) {
+                        return new PrefixIndexBenchmark().run();
+                    }
+
+                    @Override
+                    protected void onPostExecute(String report) {
+                        Log.i(TAG, report);
+                        benchmarkResult.setText(report);
+                        benchmarkButton.setEnabled(true);
+                    }
+                }.execute();
+            }
+        });
+    }
+
+    /**
+     * Adapter showing local contacts right away and adding matches of a slow directory once they
+     * arrive.
+     */
+    private MultiSourceRecipientAdapter createMultiSourceAdapter() {
+        final MultiSourceRecipientAdapter adapter = new MultiSourceRecipientAdapter(this);
+        adapter.addSource(new IndexRecipientSource(new RecipientPrefixIndex(Arrays.asList(
+                RecipientEntry.constructTopLevelEntry("test1", "test1@gmail.com", 1, true),
+                RecipientEntry.constructTopLevelEntry("test2", "test2@gmail.com", 2, true),
+                RecipientEntry.constructTopLevelEntry("test3", "test3@gmail.com", 3, true)))));
+        // Stand-in for a remote directory, answers late and is given up on after a second.
+        adapter.addSource(new RecipientSource() {
+            @Override
+            public List<RecipientEntry> getMatchingRecipients(CharSequence constraint,
+                    int maxResults, CancellationToken cancellationToken) {
+                SystemClock.sleep(500);
+                if (cancellationToken.isCancelled()
+                        || !"directory".startsWith(constraint.toString())) {
+                    return Collections.emptyList();
+                }
+                return Collections.singletonList(RecipientEntry.constructTopLevelEntry(
+                        "directory", "directory@foundation.com", 21, true));
+            }
+
+            @Override
+            public List<RecipientEntry> getAlternativeRecipients(String displayName) {
+                return Collections.emptyList();
+            }
+        }, 1000);
+        return adapter;
     }
 }
@@ -0,0 +1,108 @@
+package sk.rajniak.chips.sample;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import sk.rajniak.chips.model.RecipientEntry;
+import sk.rajniak.chips.model.RecipientPrefixIndex;
+
+/**
+ * Measures building a {@link RecipientPrefixIndex} over generated contacts and querying it with
+ * prefixes typed the way users do: one to four letters of a name or an address, sometimes two
+ * words.
+ */
+class PrefixIndexBenchmark {
+
+    private static final int CONTACT_COUNT = 100000;
+
+    private static final int QUERY_COUNT = 2000;
+
+    private static final int MAX_RESULTS = 10;
+
+    private static final String[] SYLLABLES = {
+            "an", "be", "ca", "do", "el", "fi", "ga", "ho", "is", "jo", "ka", "lu", "ma", "ne",
+            "ol", "pe", "ra", "si", "to", "ur", "va", "wi", "ze"
+    };
+
+    private static final String[] DOMAINS = {
+            "gmail.com", "example.com", "foundation.org", "mail.sk", "company.co.uk"
+    };
+
+    private final Random mRandom = new Random(42);
+
+    /**
+     * Run the benchmark, it takes a few seconds so don't call it on the UI thread.
+     *
+     * @return Human readable report.
+     */
+    public String run() {
+        final List<RecipientEntry> contacts = new ArrayList<>(CONTACT_COUNT);
+        for (int i = 0; i < CONTACT_COUNT; i++) {
+            final String first = word(2);
+            final String last = word(3);
+            final String address = first + "." + last + i + "@"
+                    + DOMAINS[mRandom.nextInt(DOMAINS.length)];
+            contacts.add(RecipientEntry.constructTopLevelEntry(capitalize(first) + " "
+                    + capitalize(last), address, i, true));
+        }
+
+        long start = System.nanoTime();
+        final RecipientPrefixIndex index = new RecipientPrefixIndex(contacts);
+        final long buildNanos = System.nanoTime() - start;
+
+        final String[] queries = new String[QUERY_COUNT];
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            final RecipientEntry contact = contacts.get(mRandom.nextInt(CONTACT_COUNT));
+            final String[] names = contact.getDisplayName().split(" ");
+            String query = prefix(names[mRandom.nextInt(names.length)]);
+            if (mRandom.nextInt(4) == 0) {
+                query += " " + prefix(names[names.length - 1]);
+            } else if (mRandom.nextInt(4) == 0) {
+                query = prefix(contact.getDestination());
+            }
+            queries[i] = query;
+        }
+
+        // Warm up, so the measured queries don't pay for compilation.
+        for (String query : queries) {
+            index.search(query, MAX_RESULTS);
+        }
+
+        final long[] nanos = new long[QUERY_COUNT];
+        long totalNanos = 0;
+        int results = 0;
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            start = System.nanoTime();
+            results += index.search(queries[i], MAX_RESULTS).size();
+            nanos[i] = System.nanoTime() - start;
+            totalNanos += nanos[i];
+        }
+        Arrays.sort(nanos);
+
+        return String.format(Locale.US,
+                "%d contacts indexed in %d ms\n%d queries: %.1f us average, %.1f us median, "
+                        + "%.1f us 99th percentile, %.1f results average",
+                CONTACT_COUNT, buildNanos / 1000000, QUERY_COUNT,
+                totalNanos / 1000f / QUERY_COUNT, nanos[QUERY_COUNT / 2] / 1000f,
+                nanos[QUERY_COUNT * 99 / 100] / 1000f, (float) results / QUERY_COUNT);
+    }
+
+    private String word(int syllables) {
+        final StringBuilder word = new StringBuilder();
+        for (int i = 0; i < syllables; i++) {
+            word.append(SYLLABLES[mRandom.nextInt(SYLLABLES.length)]);
+        }
+        return word.toString();
+    }
+
+    private String prefix(String text) {
+        return text.substring(0, Math.min(text.length(), 1 + mRandom.nextInt(4)));
+    }
+
+    private static String capitalize(String word) {
+        return Character.toUpperCase(word.charAt(0)) + word.substring(1);
+    }
+}